@@ -0,0 +1,39 @@
+package ru.bozaro.p4.crypto;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Password and ticket mangling.
+ *
+ * @author Artem V. Navrotskiy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class MangleBenchmark {
+
+    private final byte[] digest = "5D41402ABC4B2A76B9719D911017C592".getBytes(StandardCharsets.US_ASCII);
+    private final byte[] key = "7D793037A0760186574B0282F2F435E7".getBytes(StandardCharsets.US_ASCII);
+    private final byte[] raw = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    @Benchmark
+    public byte[] inMD5() {
+        return Mangle.InMD5(digest, key);
+    }
+
+    @Benchmark
+    public byte[] xor() {
+        return Mangle.XOR(digest, key);
+    }
+
+    @Benchmark
+    public byte[] otoX() {
+        return Mangle.OtoX(raw);
+    }
+}
@@ -0,0 +1,59 @@
+package ru.bozaro.p4.proto;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full {@link Client#p4} dispatch loop over in-memory streams.
+ *
+ * @author Artem V. Navrotskiy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ClientBenchmark {
+
+    @Param({"1", "1000"})
+    public int records;
+
+    private MemorySocket socket;
+    private Client client;
+    private byte[] response;
+
+    @Setup
+    public void setup() throws Exception {
+        response = Fixtures.fstatResponse(records);
+
+        // First command also runs implicit 'info' round trip
+        final ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+        Fixtures.release().send(handshake);
+        handshake.write(response);
+
+        socket = new MemorySocket();
+        socket.replay(handshake.toByteArray());
+        client = new Client(socket, "builder", "", "builder-ws", (prompt, noecho) -> "", (severity, message) -> {
+        }, false);
+        client.p4((message, severityHolder) -> null, "fstat", "//depot/...");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+    }
+
+    @Benchmark
+    public boolean fstat(Blackhole blackhole) throws IOException, InterruptedException {
+        socket.replay(response);
+        return client.p4((message, severityHolder) -> {
+            blackhole.consume(message.getString("depotFile"));
+            return null;
+        }, "fstat", "//depot/...");
+    }
+}
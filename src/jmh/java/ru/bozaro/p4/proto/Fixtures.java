@@ -0,0 +1,111 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Realistic protocol payloads shared by benchmarks.
+ *
+ * @author Artem V. Navrotskiy
+ */
+final class Fixtures {
+
+    private static final String[] FSTAT_FIELDS = {
+            "depotFile", "clientFile", "isMapped", "headAction", "headType", "headTime", "headRev", "headChange",
+            "headModTime", "haveRev", "action", "change", "type", "actionOwner", "workRev", "fileSize", "digest",
+            "headCharset", "movedFile", "movedRev", "otherOpen", "otherLock", "ourLock", "resolved", "unresolved",
+            "reresolvable", "otherAction0", "otherChange0", "otherOpen0", "otherLock0", "resolveAction0",
+            "resolveBaseFile0", "resolveBaseRev0", "resolveFromFile0", "resolveStartFromRev0",
+            "resolveEndFromRev0", "attr-mtime", "attr-owner", "attr-review", "attrProp-mtime", "attrProp-owner",
+            "shelved", "charset", "path", "haveTime", "lbrFile", "lbrRev", "lbrType", "lbrIsLazy", "lbrPath",
+    };
+
+    private Fixtures() {
+    }
+
+    /**
+     * Tagged {@code client-FstatInfo} record with 50 fields.
+     */
+    @NotNull
+    static Message fstatInfo(int index) {
+        final Message.Builder builder = new Message.Builder();
+        for (String field : FSTAT_FIELDS) {
+            final String value;
+            switch (field) {
+                case "depotFile":
+                case "lbrFile":
+                    value = String.format("//depot/projects/game/assets/textures/level%02d/texture_%06d.png", index % 40, index);
+                    break;
+                case "clientFile":
+                case "path":
+                    value = String.format("/home/builder/workspace/projects/game/assets/textures/level%02d/texture_%06d.png", index % 40, index);
+                    break;
+                case "headAction":
+                case "action":
+                    value = "edit";
+                    break;
+                case "headType":
+                case "type":
+                case "lbrType":
+                    value = "binary+l";
+                    break;
+                case "digest":
+                    value = "5D41402ABC4B2A76B9719D911017C592";
+                    break;
+                default:
+                    value = Integer.toString(1000 + index * 7 + field.length());
+            }
+            builder.param(field, value);
+        }
+        return builder
+                .param(Message.FUNC, "client-FstatInfo")
+                .build();
+    }
+
+    /**
+     * Single {@code client-OutputBinary} chunk with {@code size} bytes of data.
+     */
+    @NotNull
+    static Message outputBinary(int size) {
+        final byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return new Message.Builder()
+                .param("data", data)
+                .param(Message.FUNC, "client-OutputBinary")
+                .build();
+    }
+
+    @NotNull
+    static Message flush1(int seq) {
+        return new Message.Builder()
+                .param("fseq", Integer.toString(seq))
+                .param("himark", "2000")
+                .param(Message.FUNC, "flush1")
+                .build();
+    }
+
+    @NotNull
+    static Message release() {
+        return new Message.Builder()
+                .param(Message.FUNC, "release")
+                .build();
+    }
+
+    /**
+     * Server response for {@code fstat}: {@code count} records, {@code flush1} every 100 records and final {@code release}.
+     */
+    @NotNull
+    static byte[] fstatResponse(int count) throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < count; ++i) {
+            fstatInfo(i).send(stream);
+            if (i % 100 == 99)
+                flush1(i).send(stream);
+        }
+        release().send(stream);
+        return stream.toByteArray();
+    }
+}
@@ -0,0 +1,79 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Socket stub that replays canned server output and discards client output.
+ *
+ * @author Artem V. Navrotskiy
+ */
+final class MemorySocket extends Socket {
+
+    @NotNull
+    private final ReplayInputStream input = new ReplayInputStream();
+    @NotNull
+    private final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Replace data returned by input stream.
+     */
+    void replay(@NotNull byte[] data) {
+        input.data = data;
+        input.position = 0;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public synchronized void close() {
+    }
+
+    private static final class ReplayInputStream extends InputStream {
+        @NotNull
+        private byte[] data = {};
+        private int position;
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (position >= data.length)
+                return -1;
+
+            final int size = Math.min(len, data.length - position);
+            System.arraycopy(data, position, b, off, size);
+            position += size;
+            return size;
+        }
+
+        @Override
+        public int available() {
+            return data.length - position;
+        }
+    }
+}
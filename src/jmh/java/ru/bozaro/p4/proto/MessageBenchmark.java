@@ -0,0 +1,56 @@
+package ru.bozaro.p4.proto;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message serialization and parsing.
+ *
+ * @author Artem V. Navrotskiy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class MessageBenchmark {
+
+    private Message fstatInfo;
+    private byte[] fstatInfoFrame;
+    private Message outputBinary;
+    private byte[] outputBinaryFrame;
+
+    @Setup
+    public void setup() throws IOException {
+        fstatInfo = Fixtures.fstatInfo(12345);
+        fstatInfoFrame = fstatInfo.serialize();
+        outputBinary = Fixtures.outputBinary(1024 * 1024);
+        outputBinaryFrame = outputBinary.serialize();
+    }
+
+    @Benchmark
+    public byte[] serializeFstatInfo() throws IOException {
+        return fstatInfo.serialize();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] serializeOutputBinary() throws IOException {
+        return outputBinary.serialize();
+    }
+
+    @Benchmark
+    public Message recvFstatInfo() throws IOException {
+        return Message.recv(new ByteArrayInputStream(fstatInfoFrame));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Message recvOutputBinary() throws IOException {
+        return Message.recv(new ByteArrayInputStream(outputBinaryFrame));
+    }
+}
@@ -0,0 +1,45 @@
+package ru.bozaro.p4.proto;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server message formatting.
+ *
+ * @author Marat Radchenko
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class StringInterpolatorBenchmark {
+
+    @Param({
+            "%depotFile%#%workRev% - opened for %action%",
+            "[%argc% - file(s)|File(s)] not opened on this client.",
+            "%depotFile%%workRev% - %action% %'default change'% (%type%)",
+            "User %user% logged in.",
+    })
+    public String format;
+
+    private final Map<String, String> vars = new HashMap<>();
+
+    @Setup
+    public void setup() {
+        vars.put("depotFile", "//depot/projects/game/assets/textures/level07/texture_012345.png");
+        vars.put("workRev", "#42");
+        vars.put("action", "edit");
+        vars.put("type", "binary+l");
+        vars.put("user", "builder");
+    }
+
+    @Benchmark
+    public String interpolate() {
+        return StringInterpolator.interpolate(format, s -> vars.getOrDefault(s, ""));
+    }
+}
@@ -6,13 +6,19 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import ru.bozaro.p4.proto.Client;
 import ru.bozaro.p4.proto.ErrorSeverity;
+import ru.bozaro.p4.proto.FileTicketStore;
 import ru.bozaro.p4.proto.Message;
 
 import javax.xml.ws.Holder;
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -24,6 +30,9 @@ import java.util.List;
  */
 public final class P4 {
 
+    @NotNull
+    private static final WritableByteChannel STDOUT = Channels.newChannel(System.out);
+
     private P4() {
     }
 
@@ -47,13 +56,15 @@ public final class P4 {
             port = 1666;
         }
 
-        try (Socket socket = new Socket(host, port)) {
+        try (Socket socket = SocketChannel.open(new InetSocketAddress(host, port)).socket()) {
             final Client client = new Client(socket,
                     cmd.user,
                     cmd.password,
                     cmd.client,
                     P4::userInput,
                     P4::outputMessage,
+                    new FileTicketStore(FileTicketStore.defaultPath()),
+                    null,
                     cmd.verboseRPC > 0);
 
             final String func = cmd.command.get(0);
@@ -148,6 +159,16 @@ public final class P4 {
                     Files.delete(editFile);
                 }
 
+            case "client-OutputText":
+            case "client-OutputBinary":
+                final ByteBuffer data = message.getBuffer("data");
+                if (data != null) {
+                    while (data.hasRemaining())
+                        STDOUT.write(data);
+                    System.out.flush();
+                }
+                return null;
+
             case "client-ErrorPause":
                 System.out.println(message.getString("data"));
                 System.out.println("Hit return to continue...");
@@ -1,9 +1,5 @@
 package ru.bozaro.p4.crypto;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.Arrays;
-
 /**
  * This code implements the lucifer encryption/decryption
  * code but has been modified to work just on small strings.
@@ -30,9 +26,14 @@ import java.util.Arrays;
  * server is no longer usable on the client, in order to mangle
  * the 32 character digest (data > 16 characters) alternative
  * interfaces InMD5() and OutMD5() handle the "raw" digest.
+ * <p>
+ * Implementation is thread-safe: S-boxes and diffusion pattern are folded into immutable lookup tables and
+ * cipher state is kept as two 64-bit halves, so no memory is allocated besides result.
  */
 public class Mangle {
     private static final int BPB = 8;
+    private static final int BLOCK_SIZE = 16;
+    private static final int HEX_BLOCK_SIZE = BLOCK_SIZE * 2;
     // diffusion pattern
     private static final int[] o = new int[]{7, 6, 2, 1, 5, 0, 3, 4};
     // inverse of fixed permutation
@@ -41,151 +42,172 @@ public class Mangle {
     private static final int[] s0 = new int[]{12, 15, 7, 10, 14, 13, 11, 0, 2, 6, 3, 1, 9, 4, 5, 8};
     // S-box permutations
     private static final int[] s1 = new int[]{7, 2, 14, 9, 3, 11, 0, 4, 12, 13, 1, 10, 6, 15, 8, 5};
-    // S-box permutations
+    // S-box permutations, mixed into s1 on decipher
     private static final int[] s2 = new int[]{10, 1, 13, 12, 4, 0, 11, 3};
 
-    public static byte[] In(byte[] in, byte[] key) {
-        try {
-            ByteArrayOutputStream mangledValue = new ByteArrayOutputStream();
-            int inputLen = in.length;
-            int offset = 0;
-
-            while (offset < inputLen) {
-                int chunkSize = inputLen - offset;
-                if (chunkSize > 16) chunkSize = 16;
-                byte[] data = Arrays.copyOfRange(in, offset, offset + chunkSize);
-                byte[] mangledChunk = DoIt(data, key, false, false);
-                mangledValue.write(mangledChunk);
-                offset += chunkSize;
-            }
+    /**
+     * Substitution result for half-block byte: [key bit * 256 + byte].
+     */
+    private static final int[] SBOX_ENCIPHER = sbox(s1);
+    private static final int[] SBOX_DECIPHER = sbox(decipherS1());
+    /**
+     * Half-block bits to flip for round byte: [byte index * 256 + (key byte ^ substitution)].
+     */
+    private static final long[] DIFFUSION = diffusion();
 
-            return mangledValue.toByteArray();
-        } catch (IOException e) {
-            throw new Error(e);
-        }
+    public static byte[] In(byte[] in, byte[] key) {
+        final byte[] result = new byte[(in.length + BLOCK_SIZE - 1) / BLOCK_SIZE * HEX_BLOCK_SIZE];
+        for (int offset = 0, q = 0; offset < in.length; offset += BLOCK_SIZE, q += HEX_BLOCK_SIZE)
+            DoIt(in, offset, Math.min(BLOCK_SIZE, in.length - offset), key, false, false, result, q);
+        return result;
     }
 
     public static byte[] Out(byte[] out, byte[] key) {
-        try {
-            ByteArrayOutputStream extractedValue = new ByteArrayOutputStream();
-            int offset = 0;
-            int inputLen = out.length;
-            while (offset < inputLen) {
-                int chunkSize = inputLen - offset;
-                if (chunkSize > 32) chunkSize = 32;
-                byte[] data = Arrays.copyOfRange(out, offset, offset + chunkSize);
-                byte[] extractedChunk = DoIt(data, key, true, false);
-                extractedValue.write(extractedChunk);
-                offset += chunkSize;
-            }
-            return extractedValue.toByteArray();
-        } catch (IOException e) {
-            throw new Error(e);
-        }
+        final byte[] result = new byte[(out.length + HEX_BLOCK_SIZE - 1) / HEX_BLOCK_SIZE * BLOCK_SIZE];
+        for (int offset = 0, q = 0; offset < out.length; offset += HEX_BLOCK_SIZE, q += BLOCK_SIZE)
+            DoIt(out, offset, Math.min(HEX_BLOCK_SIZE, out.length - offset), key, true, false, result, q);
+        return result;
     }
 
     public static byte[] InMD5(byte[] data, byte[] key) {
-        return DoIt(data, key, false, true);
+        final byte[] result = new byte[HEX_BLOCK_SIZE];
+        DoIt(data, 0, data.length, key, false, true, result, 0);
+        return result;
     }
 
     public static byte[] OutMD5(byte[] data, byte[] key) {
-        return DoIt(data, key, true, true);
+        final byte[] result = new byte[HEX_BLOCK_SIZE];
+        DoIt(data, 0, data.length, key, true, true, result, 0);
+        return result;
     }
 
     public static byte[] XOR(byte[] data, byte[] key) {
-        if (data.length != 32 || key.length != 32)
+        if (data.length != HEX_BLOCK_SIZE || key.length != HEX_BLOCK_SIZE)
             throw new IllegalArgumentException();
 
-        byte[] src = XtoO(data);
-        byte[] buf = XtoO(key);
-
-        for (int i = 0; i < 16; ++i)
-            buf[i] ^= src[i];
-
-        return OtoX(buf);
-    }
-
-    private static void Mix(byte[] buf, int offset) {
-        for (int i = 0; i < s2.length; ++i) {
-            s2[i] = buf[offset + i];
-        }
+        final byte[] result = new byte[HEX_BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; ++i)
+            writeHex(result, i * 2, readHex(data, i * 2) ^ readHex(key, i * 2));
+        return result;
     }
 
-    private static byte[] DoIt(final byte[] data, final byte[] key, boolean decipher, boolean digest) {
-        int[] m = new int[128];
-        int[] k = new int[128];
-        int counter;
-        int c, i, j;
-
-        if ((decipher && (data.length != 32) && (data.length != 0)) ||
-                (!decipher && (data.length > 16) && !digest) ||
-                (!decipher && (data.length != 32) && digest)) {
+    /**
+     * Cipher single block.
+     *
+     * @param data   Raw block of up to 16 bytes for encipher or 32 hex characters for decipher and digest.
+     * @param result Receives 16 raw bytes on decipher without digest or 32 hex characters otherwise.
+     */
+    private static void DoIt(byte[] data, int offset, int length, byte[] key, boolean decipher, boolean digest, byte[] result, int resultOffset) {
+        if ((decipher && (length != HEX_BLOCK_SIZE)) ||
+                (!decipher && (length > BLOCK_SIZE) && !digest) ||
+                (!decipher && (length != HEX_BLOCK_SIZE) && digest)) {
             throw new IllegalArgumentException();
         }
 
-        // truncate key to 16 character max
-        byte[] enc = new byte[0x10];
-        byte[] buf = Arrays.copyOf(key, 0x10);
-        byte[] src = (decipher || digest) ? XtoO(data) : Arrays.copyOf(data, 0x10);
+        // Block halves: byte i of half is stored in bits 8 * i .. 8 * i + 7
+        long lo = 0;
+        long hi = 0;
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            final long b;
+            if (decipher || digest)
+                b = readHex(data, offset + i * 2);
+            else
+                b = i < length ? data[offset + i] & 0xFF : 0;
+
+            if (i < BPB)
+                lo |= b << (BPB * i);
+            else
+                hi |= b << (BPB * (i - BPB));
+        }
 
-        int p = 0;
-        int q = 0;
+        // Halves are swapped after every round and once more at the end
+        final int[] sbox = decipher ? SBOX_DECIPHER : SBOX_ENCIPHER;
+        int tcbcontrol = decipher ? 8 : 0;
+        for (int round = 0; round < 16; round += 1) {
+            if (decipher)
+                tcbcontrol = (tcbcontrol + 1) & 0xF;
+            final int tcb = keyByte(key, tcbcontrol);
+            for (int b = 0; b < 8; b += 1) {
+                final int v = sbox[(((tcb >> b) & 0x1) << 8) | (int) ((hi >>> (BPB * b)) & 0xFF)];
+                lo ^= DIFFUSION[(b << 8) | ((keyByte(key, tcbcontrol) ^ v) & 0xFF)];
 
-        for (counter = 0; counter < 16; counter += 1) {
-            c = buf[counter] & 0xFF;
-            for (i = 0; i < BPB; i += 1) {
-                k[(BPB * counter) + i] = c & 0x1;
-                c = c >> 1;
+                if (b < 7 || decipher)
+                    tcbcontrol = (tcbcontrol + 1) & 0xF;
             }
-        }
 
-        counter = 0;
+            final long temp = lo;
+            lo = hi;
+            hi = temp;
+        }
 
-        // Mix it up a bit
-        if (decipher) {
-            s1[4] = s2[0];
-            s1[5] = s2[1];
-            s1[6] = s2[2];
-            s1[7] = s2[3];
+        final boolean hex = !decipher || digest;
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            final int b = (int) (((i < BPB) ? hi >>> (BPB * i) : lo >>> (BPB * (i - BPB))) & 0xFF);
+            if (hex)
+                writeHex(result, resultOffset + i * 2, b);
+            else
+                result[resultOffset + i] = (byte) b;
         }
+    }
 
-        // Lose check for NULL, since its a valid character, assume its a
-        // 16 byte cipher block (thats all it ever should be, lose the
-        // while( (c=*p++) != '\0' )
-        for (j = 0; j < 16; ++j) {
-            c = src[p++];
-            if (counter == 16) {
-                Getdval(decipher, m, k);
+    /**
+     * Key is truncated or zero-padded to 16 bytes.
+     */
+    private static int keyByte(byte[] key, int index) {
+        return index < key.length ? key[index] & 0xFF : 0;
+    }
 
-                for (counter = 0; counter < 16; counter += 1) {
-                    int output = 0;
-                    for (i = BPB - 1; i >= 0; i -= 1)
-                        output = (output << 1) + m[(BPB * counter) + i];
-                    enc[q++] = (byte) output;
+    private static int[] decipherS1() {
+        final int[] result = s1.clone();
+        System.arraycopy(s2, 0, result, 4, s2.length);
+        return result;
+    }
+
+    private static int[] sbox(int[] s1) {
+        final int[] result = new int[512];
+        for (int x = 0; x < 256; ++x) {
+            final int lo = x >> 4;
+            final int hi = x & 0xF;
+            result[x] = s0[lo] + 16 * s1[hi];
+            result[256 + x] = s0[hi] + 16 * s1[lo];
+        }
+        return result;
+    }
+
+    private static long[] diffusion() {
+        final long[] result = new long[8 * 256];
+        for (int b = 0; b < 8; ++b) {
+            for (int w = 0; w < 256; ++w) {
+                long mask = 0;
+                for (int bit = 0; bit < BPB; bit += 1) {
+                    if (((w >> pr[bit]) & 0x1) != 0)
+                        mask |= 1L << (BPB * ((o[bit] + b) & 0x7) + bit);
                 }
-                counter = 0;
+                result[(b << 8) | w] = mask;
             }
-            for (i = 0; i < BPB; i += 1) {
-                m[(BPB * counter) + i] = c & 0x1;
-                c = c >> 1;
-            }
-            counter += 1;
         }
+        return result;
+    }
 
-        for (; counter < 16; counter += 1)
-            for (i = 0; i < BPB; i += 1)
-                m[(BPB * counter) + i] = 0;
-
-        Getdval(decipher, m, k);
+    private static int readHex(byte[] data, int offset) {
+        return (hexDigit(data[offset]) << 4) | hexDigit(data[offset + 1]);
+    }
 
-        for (counter = 0; counter < 16; counter += 1) {
-            int output = 0;
-            for (i = BPB - 1; i >= 0; i -= 1)
-                output = (output << 1) + m[(BPB * counter) + i];
-            enc[q++] = (byte) output;
-        }
+    private static int hexDigit(int h) {
+        if (h >= '0' && h <= '9')
+            return h - '0';
+        if (h >= 'A' && h <= 'F')
+            return h - ('A' - 10);
+        if (h >= 'a' && h <= 'f')
+            return h - ('a' - 10);
+        throw new IllegalArgumentException("Invalid hex character: " + (char) h);
+    }
 
-        return (decipher && !digest) ? enc : OtoX(enc);
+    private static void writeHex(byte[] result, int offset, int value) {
+        final int h = (value >> 4) & 0x0F;
+        final int l = value & 0x0F;
+        result[offset] = (byte) ((h >= 10 ? 'A' - 10 : '0') + h);
+        result[offset + 1] = (byte) ((l >= 10 ? 'A' - 10 : '0') + l);
     }
 
     public static byte[] XtoO(byte[] data) {
@@ -218,72 +240,4 @@ public class Mangle {
         }
         return result;
     }
-
-    private static void Getdval(boolean decipher, int m[], int k[]) {
-        int tcbindex; // transfer control byte indices
-        int round, hi, lo, h_0, h_1;
-        int index, v;
-        int[] tr = new int[BPB];
-
-        h_0 = 0;
-        h_1 = 1;
-
-        int tcbcontrol = decipher ? 8 : 0;
-
-        // mix it up a bit
-        if (decipher) {
-            s1[8] = s2[4];
-            s1[9] = s2[5];
-            s1[10] = s2[6];
-            s1[11] = s2[7];
-        }
-
-        for (round = 0; round < 16; round += 1) {
-            if (decipher)
-                tcbcontrol = (tcbcontrol + 1) & 0xF;
-            tcbindex = tcbcontrol;
-            for (int b = 0; b < 8; b += 1) {
-                lo = (m[(h_1 * 64) + (BPB * b) + 7]) * 8
-                        + (m[(h_1 * 64) + (BPB * b) + 6]) * 4
-                        + (m[(h_1 * 64) + (BPB * b) + 5]) * 2
-                        + (m[(h_1 * 64) + (BPB * b) + 4]);
-                hi = (m[(h_1 * 64) + (BPB * b) + 3]) * 8
-                        + (m[(h_1 * 64) + (BPB * b) + 2]) * 4
-                        + (m[(h_1 * 64) + (BPB * b) + 1]) * 2
-                        + (m[(h_1 * 64) + (BPB * b) + 0]);
-
-                v = (s0[lo] + 16 * s1[hi]) * (1 - k[(BPB * tcbindex) + b])
-                        + (s0[hi] + 16 * s1[lo]) * k[(BPB * tcbindex) + b];
-
-                for (int temp1 = 0; temp1 < BPB; temp1 += 1) {
-                    tr[temp1] = v & 0x1;
-                    v = v >> 1;
-                }
-
-                for (int bit = 0; bit < BPB; bit += 1) {
-                    index = (o[bit] + b) & 0x7;
-                    int temp1 = m[(h_0 * 64) + (BPB * index) + bit]
-                            + k[(BPB * tcbcontrol) + pr[bit]]
-                            + tr[pr[bit]];
-                    m[(h_0 * 64) + (BPB * index) + bit] = temp1 & 0x1;
-                }
-
-                if (b < 7 || decipher)
-                    tcbcontrol = (tcbcontrol + 1) & 0xF;
-            }
-
-            int temp1 = h_0;
-            h_0 = h_1;
-            h_1 = temp1;
-        }
-
-        // final swap
-        for (int b = 0; b < 8; b += 1) {
-            for (int bit = 0; bit < BPB; bit += 1) {
-                int temp1 = m[(BPB * b) + bit];
-                m[(BPB * b) + bit] = m[64 + (BPB * b) + bit];
-                m[64 + (BPB * b) + bit] = temp1;
-            }
-        }
-    }
 }
@@ -0,0 +1,360 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pool of I/O buffers shared by connections, with limit of total memory.
+ * <p>
+ * Buffers are rounded up to power of two size classes from {@link #MIN_CLASS_SIZE} to {@link #MAX_CLASS_SIZE}
+ * and reused after release. Larger buffers are allocated on every request, but still counted against budget.
+ * When budget is exhausted, {@link #acquire(int)} waits for other connections to release their buffers.
+ * <p>
+ * Pooled buffers are connection read/write buffers, encoded outgoing frames and bodies of received frames
+ * (see {@link Message#release()}). Connection read/write buffers are held while connection is open, so
+ * frame buffers are allocated over budget rather than wait when no other frame buffer can be released.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class BufferPool {
+
+    static final int MIN_CLASS_SIZE = 0x1000;
+    static final int MAX_CLASS_SIZE = 0x100000;
+    /**
+     * Maximum bytes of released buffers kept for reuse.
+     */
+    private static final long MAX_CACHED_BYTES = 0x1000000;
+
+    @NotNull
+    private static final BufferPool defaultPool = new BufferPool(Long.MAX_VALUE, false);
+
+    private final boolean direct;
+    @NotNull
+    private final ArrayDeque<ByteBuffer>[] heapCache;
+    @NotNull
+    private final ArrayDeque<ByteBuffer>[] directCache;
+    private long budget;
+    /**
+     * Bytes of acquired and cached buffers.
+     */
+    private long allocated;
+    private long cached;
+    /**
+     * Bytes of connection read/write buffers, see {@link #acquireIO}.
+     */
+    private long pinned;
+    /**
+     * Non-blocking callers waiting for budget, see {@link #tryAcquire(int, boolean, Runnable)}.
+     */
+    @NotNull
+    private List<Runnable> waiters = new ArrayList<>();
+    private long hits;
+    private long misses;
+    private long waits;
+
+    /**
+     * @param budget Maximum bytes of acquired and cached buffers.
+     * @param direct Prefer direct buffers where array access is not required.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long budget, boolean direct) {
+        if (budget < MAX_CLASS_SIZE)
+            throw new IllegalArgumentException("Budget is too small: " + budget);
+
+        this.budget = budget;
+        this.direct = direct;
+        final int classes = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE) + 1;
+        this.heapCache = new ArrayDeque[classes];
+        this.directCache = new ArrayDeque[classes];
+        for (int i = 0; i < classes; ++i) {
+            heapCache[i] = new ArrayDeque<>();
+            directCache[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Pool shared by connections created without explicit pool. It has no budget until {@link #setBudget(long)}.
+     */
+    @NotNull
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    public void setBudget(long budget) {
+        if (budget < MAX_CLASS_SIZE)
+            throw new IllegalArgumentException("Budget is too small: " + budget);
+
+        final List<Runnable> ready;
+        synchronized (this) {
+            this.budget = budget;
+            trim();
+            notifyAll();
+            ready = takeWaiters();
+        }
+        ready.forEach(Runnable::run);
+    }
+
+    /**
+     * Acquire buffer of at least {@code size} bytes, waiting while budget is exhausted.
+     * Buffer is direct if pool prefers direct buffers.
+     */
+    @NotNull
+    public ByteBuffer acquire(int size) throws InterruptedException {
+        return acquire(size, direct);
+    }
+
+    /**
+     * Acquire buffer, waiting while budget is exhausted.
+     */
+    @NotNull
+    synchronized ByteBuffer acquire(int size, boolean direct) throws InterruptedException {
+        return acquire(size, direct, false);
+    }
+
+    @NotNull
+    private synchronized ByteBuffer acquire(int size, boolean direct, boolean pin) throws InterruptedException {
+        ByteBuffer result;
+        boolean waited = false;
+        while ((result = tryAcquire(size, direct, pin)) == null) {
+            if (!waited) {
+                waits++;
+                waited = true;
+            }
+            wait();
+        }
+        return result;
+    }
+
+    /**
+     * Acquire frame buffer for I/O code: interruption is reported as {@link InterruptedIOException}.
+     */
+    @NotNull
+    ByteBuffer acquireFrame(int size) throws InterruptedIOException {
+        try {
+            return acquire(size, false, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for buffer");
+        }
+    }
+
+    /**
+     * Acquire connection read/write buffer, held until connection is closed and released by {@link #releaseIO}.
+     * Waits while budget is exhausted by any buffers. Interruption is reported as {@link InterruptedIOException}.
+     */
+    @NotNull
+    ByteBuffer acquireIO(int size, boolean direct) throws InterruptedIOException {
+        try {
+            return acquire(size, direct, true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for buffer");
+        }
+    }
+
+    /**
+     * Acquire buffer without waiting. Buffer is direct if pool prefers direct buffers.
+     *
+     * @return Buffer or {@code null} if budget is exhausted.
+     */
+    @Nullable
+    public ByteBuffer tryAcquire(int size) {
+        return tryAcquire(size, direct);
+    }
+
+    /**
+     * Acquire buffer without waiting.
+     *
+     * @return Buffer or {@code null} if budget is exhausted.
+     */
+    @Nullable
+    synchronized ByteBuffer tryAcquire(int size, boolean direct) {
+        return tryAcquire(size, direct, false);
+    }
+
+    /**
+     * Acquire buffer without waiting, for event loop.
+     *
+     * @param retry Called once after some buffer is released if budget is exhausted now.
+     * @return Buffer or {@code null} if budget is exhausted.
+     */
+    @Nullable
+    synchronized ByteBuffer tryAcquire(int size, boolean direct, @NotNull Runnable retry) {
+        final ByteBuffer result = tryAcquire(size, direct, false);
+        if (result == null) {
+            waits++;
+            waiters.add(retry);
+        }
+        return result;
+    }
+
+    @Nullable
+    private ByteBuffer tryAcquire(int size, boolean direct, boolean pin) {
+        final ByteBuffer result = allocate(size, direct, pin);
+        if (result != null && pin)
+            pinned += result.capacity();
+        return result;
+    }
+
+    @Nullable
+    private ByteBuffer allocate(int size, boolean direct, boolean pin) {
+        final int sizeClass = sizeClass(size);
+        if (sizeClass >= 0) {
+            final ByteBuffer buffer = cache(direct)[sizeClass].pollFirst();
+            if (buffer != null) {
+                cached -= buffer.capacity();
+                hits++;
+                buffer.clear();
+                return buffer;
+            }
+        }
+
+        final int capacity = sizeClass >= 0 ? MIN_CLASS_SIZE << sizeClass : size;
+        if (allocated + capacity > budget) {
+            evict(allocated + capacity - budget);
+            // Buffer over budget is allowed when nothing can be released: connection buffers are held until close
+            if (allocated + capacity > budget && allocated > (pin ? 0 : pinned))
+                return null;
+        }
+        allocated += capacity;
+        misses++;
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Return buffer acquired from this pool. Buffer must not be used after release.
+     */
+    public void release(@NotNull ByteBuffer buffer) {
+        release(buffer, false);
+    }
+
+    /**
+     * Return connection buffer acquired by {@link #acquireIO}.
+     */
+    void releaseIO(@NotNull ByteBuffer buffer) {
+        release(buffer, true);
+    }
+
+    private void release(@NotNull ByteBuffer buffer, boolean pin) {
+        final List<Runnable> ready;
+        synchronized (this) {
+            final int capacity = buffer.capacity();
+            if (pin)
+                pinned -= capacity;
+
+            final int sizeClass = sizeClass(capacity);
+            final ArrayDeque<ByteBuffer> queue = sizeClass >= 0 && (MIN_CLASS_SIZE << sizeClass) == capacity
+                    ? cache(buffer.isDirect())[sizeClass]
+                    : null;
+            if (queue != null && cached + capacity <= MAX_CACHED_BYTES && allocated <= budget) {
+                queue.addFirst(buffer);
+                cached += capacity;
+            } else {
+                allocated -= capacity;
+            }
+            notifyAll();
+            ready = takeWaiters();
+        }
+        // Event loop callbacks only schedule retry, but are called without lock anyway
+        ready.forEach(Runnable::run);
+    }
+
+    @NotNull
+    private List<Runnable> takeWaiters() {
+        if (waiters.isEmpty())
+            return Collections.emptyList();
+        final List<Runnable> result = waiters;
+        waiters = new ArrayList<>();
+        return result;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Acquire calls which had to wait for budget.
+     */
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    /**
+     * Bytes of acquired and cached buffers.
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocated;
+    }
+
+    /**
+     * Bytes of released buffers kept for reuse.
+     */
+    public synchronized long getCachedBytes() {
+        return cached;
+    }
+
+    /**
+     * Drop cached buffers until cached memory fits into budget.
+     */
+    private void trim() {
+        if (allocated > budget)
+            evict(allocated - budget);
+    }
+
+    /**
+     * Drop cached buffers, largest first.
+     */
+    private void evict(long bytes) {
+        long freed = 0;
+        for (int i = heapCache.length - 1; i >= 0 && freed < bytes; --i) {
+            freed += evict(heapCache[i], bytes - freed);
+            freed += evict(directCache[i], bytes - freed);
+        }
+    }
+
+    private long evict(@NotNull ArrayDeque<ByteBuffer> queue, long bytes) {
+        long freed = 0;
+        ByteBuffer buffer;
+        while (freed < bytes && (buffer = queue.pollLast()) != null) {
+            freed += buffer.capacity();
+            cached -= buffer.capacity();
+            allocated -= buffer.capacity();
+        }
+        return freed;
+    }
+
+    @NotNull
+    private ArrayDeque<ByteBuffer>[] cache(boolean direct) {
+        return direct ? directCache : heapCache;
+    }
+
+    /**
+     * @return Size class index or -1 if size is larger than {@link #MAX_CLASS_SIZE}.
+     */
+    private static int sizeClass(int size) {
+        if (size > MAX_CLASS_SIZE)
+            return -1;
+        if (size <= MIN_CLASS_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    }
+}
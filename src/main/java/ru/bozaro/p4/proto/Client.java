@@ -2,18 +2,33 @@ package ru.bozaro.p4.proto;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.reactivestreams.Publisher;
 import ru.bozaro.p4.crypto.Mangle;
 
 import javax.xml.ws.Holder;
 import java.io.IOException;
 import java.io.StreamCorruptedException;
 import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * P4 client protocol implementation.
@@ -22,28 +37,123 @@ import java.util.Map;
  */
 public final class Client implements AutoCloseable {
 
+    @NotNull
+    private static final byte[] EMPTY_BYTES = {};
+    /**
+     * Socket buffer sizes announced by 'protocol' message.
+     */
+    private static final int BUFFER_SIZE = 524288;
+
     @NotNull
     private final Message.Builder baseMessage;
+    /**
+     * Encoded {@link #baseMessage} parameters. Reset on every {@link #baseMessage} change.
+     */
+    @Nullable
+    private byte[] baseMessagePrefix;
     @NotNull
     private final InputResolver inputResolver;
     @NotNull
     private final MessageOutput messageOutput;
     @NotNull
-    private final Socket socket;
+    private final Transport transport;
+    /**
+     * Commands waiting for execution.
+     */
     @NotNull
-    private final HashMap<String, Callback> funcs;
+    private final ArrayDeque<Command> commands = new ArrayDeque<>();
+    /**
+     * Command being executed by server. Read by blocking transport before dispatch, see {@link #poolFrames()}.
+     */
+    @Nullable
+    private volatile Command active;
+    /**
+     * Reason of broken connection.
+     */
+    @Nullable
+    private volatile Throwable failure;
+    /**
+     * Completed after implicit 'info' and 'login' commands.
+     */
+    @NotNull
+    private final CompletableFuture<Boolean> handshake = new CompletableFuture<>();
+    /**
+     * Thread executing queued commands of blocking transport.
+     */
+    @Nullable
+    private ExecutorService worker;
+    private boolean closed = false;
+    @NotNull
+    private final Object workerLock = new Object();
+    @NotNull
+    private final EnumMap<Func, Callback> funcs;
     @NotNull
     private final String username;
     private final boolean verbose;
     private boolean protocolSent = false;
+    /**
+     * Replies of callbacks completing asynchronously, see {@link #replyLater}. Accessed by message loop only.
+     */
+    @NotNull
+    private final ArrayDeque<CompletableFuture<Message.Builder>> replies = new ArrayDeque<>();
+    /**
+     * Command whose 'release' is received while {@link #replies} are pending.
+     */
+    @Nullable
+    private Command releasing;
+    /**
+     * Reasons to keep connection paused, see {@link #pause()}. Accessed by message loop only.
+     */
+    private int pauses;
+    /**
+     * Uploads waiting for flow control window.
+     */
+    @NotNull
+    private final ArrayDeque<Upload> uploads = new ArrayDeque<>();
+    /**
+     * Maximum size of sent but not acknowledged by 'flush2' data.
+     */
+    private int himark = BUFFER_SIZE;
+    /**
+     * Size of data sent by uploads.
+     * <p>
+     * Other messages are not counted: they are small replies, at most one per received server message, so they
+     * can't fill server receive buffer. Server echoes 'fseq' in 'flush2' as is, so only client interprets it.
+     */
+    private long duplexSent;
+    /**
+     * Value of {@link #duplexSent} at last 'flush1' sent to server.
+     */
+    private long duplexMarked;
+    /**
+     * Last 'fseq' acknowledged by server.
+     */
+    private long duplexAcked;
     private int protocolServer = -1;
+    /**
+     * Server 'rcvbuf' from 'protocol' message.
+     */
+    private int serverRcvbuf;
+    private boolean serverUnicode;
     @NotNull
     private String password = "";
     @Nullable
     private byte[] secretHash = null;
     @NotNull
-    private final Map<String, byte[]> secretTokens = new HashMap<>();
+    private final TicketStore tickets;
+    @Nullable
+    private final ServerInfoCache serverCache;
+    /**
+     * Key of this connection in {@link #serverCache}.
+     */
+    @Nullable
+    private final String serverKey;
 
+    /**
+     * Socket should be opened by {@link java.nio.channels.SocketChannel} (see
+     * {@link java.nio.channels.SocketChannel#socket()}): uploaded files are written to its channel without copying.
+     * Plain sockets copy them through stream.
+     */
     public Client(@NotNull Socket socket,
                   @NotNull String username,
                   @NotNull String password,
@@ -51,21 +161,72 @@ public final class Client implements AutoCloseable {
                   @NotNull String client,
                   @NotNull InputResolver inputResolver,
                   @NotNull MessageOutput messageOutput,
-                  boolean verbose) {
+                  boolean verbose) throws IOException {
+        this(socket, username, password, client, inputResolver, messageOutput, new MemoryTicketStore(), null, verbose);
+    }
+
+    /**
+     * @param tickets     Login tickets, may be shared by several connections.
+     * @param serverCache Server capabilities shared by several connections.
+     */
+    public Client(@NotNull Socket socket,
+                  @NotNull String username,
+                  @NotNull String password,
+                  @NotNull String client,
+                  @NotNull InputResolver inputResolver,
+                  @NotNull MessageOutput messageOutput,
+                  @NotNull TicketStore tickets,
+                  @Nullable ServerInfoCache serverCache,
+                  boolean verbose) throws IOException {
+        this(socket, username, password, client, inputResolver, messageOutput, tickets, serverCache, FrameLimits.DEFAULT, verbose);
+    }
+
+    /**
+     * @param limits Limits of received frames. I/O buffers are taken from {@link BufferPool#getDefault()}.
+     */
+    public Client(@NotNull Socket socket,
+                  @NotNull String username,
+                  @NotNull String password,
+                  @NotNull String client,
+                  @NotNull InputResolver inputResolver,
+                  @NotNull MessageOutput messageOutput,
+                  @NotNull TicketStore tickets,
+                  @Nullable ServerInfoCache serverCache,
+                  @NotNull FrameLimits limits,
+                  boolean verbose) throws IOException {
+        this(new SocketTransport(socket, limits, BufferPool.getDefault()), username, password, client, inputResolver, messageOutput, tickets,
+                serverCache, serverCache == null ? null : ServerInfoCache.key(socket.getRemoteSocketAddress(), username), verbose);
+    }
+
+    Client(@NotNull Transport transport,
+           @NotNull String username,
+           @NotNull String password,
+           @NotNull String client,
+           @NotNull InputResolver inputResolver,
+           @NotNull MessageOutput messageOutput,
+           @NotNull TicketStore tickets,
+           @Nullable ServerInfoCache serverCache,
+           @Nullable String serverKey,
+           boolean verbose) {
         this.username = username;
+        this.tickets = tickets;
+        this.serverCache = serverCache;
+        this.serverKey = serverKey;
         this.messageOutput = messageOutput;
         this.verbose = verbose;
         this.baseMessage = createBaseMessage(client);
-        this.socket = socket;
+        this.transport = transport;
         this.password = password;
-        this.funcs = new HashMap<>();
+        this.funcs = new EnumMap<>(Func.class);
         this.inputResolver = inputResolver;
-        funcs.put("flush1", this::flush1);
-        funcs.put("protocol", this::clientProtocol);
-        funcs.put("client-Crypto", this::clientCrypto);
-        funcs.put("client-Message", this::clientMessage);
-        funcs.put("client-Prompt", this::clientPrompt);
-        funcs.put("client-SetPassword", this::clientSetPassword);
+        funcs.put(Func.Flush1, this::flush1);
+        funcs.put(Func.Flush2, this::flush2);
+        funcs.put(Func.Protocol, this::clientProtocol);
+        funcs.put(Func.ClientCrypto, this::clientCrypto);
+        funcs.put(Func.ClientMessage, this::clientMessage);
+        funcs.put(Func.ClientPrompt, this::clientPrompt);
+        funcs.put(Func.ClientSetPassword, this::clientSetPassword);
+        funcs.put(Func.ClientSendFile, this::clientSendFile);
     }
 
     @NotNull
@@ -99,88 +260,589 @@ public final class Client implements AutoCloseable {
                 .param("clientCase", "1");
     }
 
+    /**
+     * Upload local file content, for example on 'submit'.
+     */
+    @Nullable
+    private Message.Builder clientSendFile(@NotNull Message message, @NotNull Holder<ErrorSeverity> severityHolder) throws IOException {
+        for (String key : new String[]{"handle", "write", "confirm"}) {
+            if (message.getBytes(key) == null)
+                throw new StreamCorruptedException("Parameter '" + key + "' is missing in client-SendFile");
+        }
+        String path = message.getString("path");
+        if (path == null)
+            path = message.getString("clientFile");
+        if (path == null)
+            throw new StreamCorruptedException("Parameter 'path' is missing in client-SendFile");
+
+        final FileUpload upload;
+        try {
+            upload = new FileUpload(message.detach(), Paths.get(path));
+        } catch (IOException e) {
+            if (ErrorSeverity.Failed.compareTo(severityHolder.value) > 0)
+                severityHolder.value = ErrorSeverity.Failed;
+            messageOutput.output(ErrorSeverity.Failed, "Can't read " + path + ": " + e.getMessage());
+            return FileUpload.confirm(message, "confirm")
+                    .param("status", "fail");
+        }
+        upload(upload);
+        return null;
+    }
+
     @Nullable
-    private Message.Builder clientMessage(@NotNull Message message, @NotNull Holder<ErrorSeverity> severityHolder) {
+    private Message.Builder clientMessage(@NotNull Message req, @NotNull Holder<ErrorSeverity> severityHolder) {
+        // Server messages may be kept by output
+        final Message message = req.detach();
         String fmt;
         for (int i = 0; (fmt = message.getString("fmt" + i)) != null; ++i) {
             final String codeString = message.getString("code" + i);
-            ErrorSeverity severity = ErrorSeverity.None;
+            // Code is unsigned 32-bit value
+            final int code = codeString == null ? 0 : (int) Long.parseLong(codeString);
+            final ServerMessage serverMessage = new ServerMessage(code, fmt, message);
+            final ErrorSeverity severity = serverMessage.getSeverity();
+
+            final Command command = active;
+            if (command != null && command.loginRetry && serverMessage.isAuthError()) {
+                // Reported only if command fails again after login
+                command.authError = serverMessage;
+                continue;
+            }
+            if (severity.compareTo(severityHolder.value) > 0)
+                severityHolder.value = severity;
+            messageOutput.output(serverMessage);
+        }
+        return null;
+    }
+
+    /**
+     * Execute command and wait for its completion.
+     * <p>
+     * Must not be called from {@link EventLoop} thread.
+     *
+     * @return {@code true} if command completed without errors.
+     */
+    public boolean p4(@NotNull Callback callback, @NotNull String func, @NotNull String... args) throws IOException, InterruptedException {
+        return exec(callback, func, args).isOk();
+    }
+
+    /**
+     * Execute command and wait for its completion.
+     * <p>
+     * Must not be called from {@link EventLoop} thread.
+     *
+     * @return Highest severity of command messages.
+     */
+    @NotNull
+    public synchronized ErrorSeverity exec(@NotNull Callback callback, @NotNull String func, @NotNull String... args) throws IOException, InterruptedException {
+        final Command command = new Command(callback, func, args);
+        transport.execute(() -> submit(command));
+        transport.await(this, command.future);
+        return join(command.future);
+    }
 
-            if (codeString != null) {
-                int code = Integer.parseInt(codeString);
-                severity = ErrorSeverity.values()[(code >> 28) & 0x3ff];
+    /**
+     * Queue command for execution without blocking caller.
+     * <p>
+     * For {@link EventLoop} connections callbacks are called on event loop thread and must not block.
+     * Socket connections execute queued commands on their own worker thread, started on first use.
+     *
+     * @return Future with {@code true} if command completed without errors.
+     */
+    @NotNull
+    public CompletableFuture<Boolean> p4Async(@NotNull Callback callback, @NotNull String func, @NotNull String... args) {
+        return enqueue(callback, func, args).thenApply(ErrorSeverity::isOk);
+    }
 
-                if (severity.compareTo(severityHolder.value) > 0)
-                    severityHolder.value = severity;
+    /**
+     * Queue tagged command and collect all its output.
+     */
+    @NotNull
+    public CompletableFuture<Result> p4Async(@NotNull String func, @NotNull String... args) {
+        final List<Message> messages = new ArrayList<>();
+        return enqueue((message, severityHolder) -> {
+            messages.add(message);
+            return null;
+        }, func, args).thenApply(severity -> new Result(severity, messages));
+    }
+
+    /**
+     * Run 'print' command and stream file contents to target without buffering whole files.
+     * <p>
+     * Must not be called from {@link EventLoop} thread.
+     *
+     * @return {@code true} if command completed without errors.
+     */
+    public boolean print(@NotNull PrintTarget target, @NotNull String... args) throws IOException, InterruptedException {
+        final PrintCallback callback = new PrintCallback(target);
+        final boolean ok;
+        try {
+            ok = p4(callback, "print", args);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            callback.discard();
+            throw e;
+        }
+        callback.complete();
+        return ok;
+    }
+
+    /**
+     * Queue 'print' command. For {@link EventLoop} connections target is called on event loop thread.
+     */
+    @NotNull
+    public CompletableFuture<Boolean> printAsync(@NotNull PrintTarget target, @NotNull String... args) {
+        final PrintCallback callback = new PrintCallback(target);
+        return enqueue(callback, "print", args).whenComplete((severity, e) -> {
+            if (e != null)
+                callback.discard();
+        }).thenApply(severity -> {
+            try {
+                callback.complete();
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
+            return severity.isOk();
+        });
+    }
 
-            final String msg = StringInterpolator.interpolate(fmt, s -> message.getStringOrDefault(s, ""));
-            messageOutput.output(severity, msg);
+    @NotNull
+    private CompletableFuture<ErrorSeverity> enqueue(@NotNull Callback callback, @NotNull String func, @NotNull String... args) {
+        final Command command = new Command(callback, func, args);
+        if (!transport.isBlocking()) {
+            transport.execute(() -> submit(command));
+            return command.future;
         }
-        return null;
+
+        try {
+            worker().execute(() -> {
+                synchronized (this) {
+                    submit(command);
+                    try {
+                        transport.await(this, command.future);
+                    } catch (IOException | InterruptedException e) {
+                        // Already reported by future
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            command.future.completeExceptionally(new ClosedChannelException());
+        }
+        return command.future;
+    }
+
+    /**
+     * Tagged command output as reactive stream. Command is queued on subscription.
+     * <p>
+     * Reading from connection is suspended while subscriber has no demand. Stream fails if command completes
+     * with errors.
+     */
+    @NotNull
+    public Publisher<Message> publish(@NotNull String func, @NotNull String... args) {
+        return new MessagePublisher(this, transport, func, args);
+    }
+
+    /**
+     * Tagged command output as blocking iterator with bounded buffering. Iterator must be closed.
+     */
+    @NotNull
+    public MessageIterator iterate(@NotNull String func, @NotNull String... args) {
+        return new MessageIterator(publish(func, args));
     }
 
-    public synchronized boolean p4(@NotNull Callback callback, @NotNull String func, @NotNull String... args) throws IOException, InterruptedException {
-        if (!protocolSent) {
-            send(new Message.Builder()
-                    .param("client", "80")
-                    .param("sndbuf", "524288")
-                    .param("rcvbuf", "524288")
-                    .param(Message.FUNC, "protocol"));
-            protocolSent = true;
-
-            final boolean[] needLogin = {false};
-            final Callback autologinCallback = (message, severityHolder) -> {
-                if (!message.getFunc().equals("client-FstatInfo"))
-                    throw new StreamCorruptedException("Unexpected message: " + message);
-
-                needLogin[0] = "enabled".equals(message.getString("password"));
-                return null;
-            };
-            if (p4(autologinCallback, "info") && needLogin[0]) {
-                p4((message, severityHolder) -> {
-                    throw new StreamCorruptedException("Unexpected message: " + message);
-                }, "login");
+    /**
+     * Tagged command output as lazy sequential stream. Stream must be closed.
+     */
+    @NotNull
+    public Stream<Message> stream(@NotNull String func, @NotNull String... args) {
+        final MessageIterator iterator = iterate(func, args);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
+
+    @NotNull
+    private ExecutorService worker() {
+        // Client monitor may be held by running command for long time
+        synchronized (workerLock) {
+            if (closed)
+                throw new RejectedExecutionException("Client is closed");
+            if (worker == null) {
+                worker = Executors.newSingleThreadExecutor(runnable -> {
+                    final Thread thread = new Thread(runnable, "p4-client-" + username);
+                    thread.setDaemon(true);
+                    return thread;
+                });
             }
+            return worker;
         }
+    }
 
-        final Message.Builder builder = baseMessage.clone().param(Message.FUNC, "user-" + func);
-        for (String arg : args) {
-            builder.arg(arg);
+    private static <T> T join(@NotNull CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof InterruptedException)
+                throw (InterruptedException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Send protocol message and run implicit 'info' and 'login' commands now instead of before first command.
+     *
+     * @return {@code true} if session is negotiated without errors.
+     */
+    public synchronized boolean negotiate() throws IOException, InterruptedException {
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        transport.execute(() -> {
+            if (failure != null) {
+                future.completeExceptionally(failure);
+                return;
+            }
+            try {
+                startSession();
+                handshake.whenComplete((ok, e) -> {
+                    if (e != null)
+                        future.completeExceptionally(e);
+                    else
+                        future.complete(ok);
+                });
+                if (active == null)
+                    startNext();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                future.completeExceptionally(e);
+            }
+        });
+        transport.await(this, future);
+        return join(future);
+    }
+
+    /**
+     * @return {@code true} if callbacks are called on thread dedicated to this connection, so they may wait.
+     * Otherwise callbacks are called on {@link EventLoop} thread and must use {@link #pause()} instead.
+     */
+    public boolean isBlocking() {
+        return transport.isBlocking();
+    }
+
+    /**
+     * Stop dispatching received messages to callbacks until {@link #resume()}, for example while callback
+     * has too much unfinished work. Ignored by blocking connections.
+     * <p>
+     * Must be called from message loop. Calls are counted: connection is resumed by last {@link #resume()}.
+     */
+    public void pause() {
+        if (pauses++ == 0)
+            transport.pause();
+    }
+
+    public void resume() {
+        if (--pauses == 0)
+            transport.resume();
+    }
+
+    /**
+     * Run task in context of message loop: on event loop thread, or for blocking connections on calling thread
+     * or thread which dispatches messages, never concurrently with callbacks.
+     */
+    public void execute(@NotNull Runnable task) {
+        transport.execute(task);
+    }
+
+    /**
+     * Reply to current message once reply is computed, without waiting for it. Must be called from callback.
+     * <p>
+     * Messages are dispatched meanwhile. Replies are sent in order, replies to later messages including 'flush2'
+     * are sent after them, so server flow control limits amount of unanswered messages. Command completes only
+     * after all its replies are sent. Future completed by {@code null} sends nothing, failed one breaks connection.
+     */
+    public void replyLater(@NotNull CompletableFuture<Message.Builder> reply) {
+        replies.add(reply);
+        reply.whenComplete((builder, e) -> transport.execute(this::replyCompleted));
+    }
+
+    private void replyCompleted() {
+        try {
+            if (!sendReplies(false) || releasing == null)
+                return;
+
+            final Command command = releasing;
+            releasing = null;
+            release(command);
+            resume();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            fail(e);
         }
+    }
+
+    /**
+     * Send completed replies of {@link #replyLater} in order.
+     *
+     * @param wait Wait for replies which are not completed yet.
+     * @return {@code true} if all replies are sent.
+     */
+    private boolean sendReplies(boolean wait) throws IOException, InterruptedException {
+        CompletableFuture<Message.Builder> reply;
+        while ((reply = replies.peek()) != null) {
+            if (!wait && !reply.isDone())
+                return false;
+
+            final Message.Builder builder;
+            try {
+                builder = reply.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Can't compute reply", e.getCause());
+            }
+            replies.poll();
+            if (builder != null)
+                send(builder);
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if next received message may be pooled, see {@link Callback#poolFrames()}.
+     */
+    boolean poolFrames() {
+        final Command command = active;
+        return command != null && command.callback.poolFrames();
+    }
+
+    /**
+     * Connection is unusable after I/O or protocol error.
+     */
+    public boolean isBroken() {
+        return failure != null;
+    }
+
+    private void submit(@NotNull Command command) {
+        if (failure != null) {
+            command.future.completeExceptionally(failure);
+            return;
+        }
+        try {
+            startSession();
+            commands.add(command);
+            if (active == null)
+                startNext();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            command.future.completeExceptionally(e);
+        }
+    }
+
+    private void startSession() throws IOException {
+        if (protocolSent)
+            return;
+
+        send(new Message.Builder()
+                .param("client", "80")
+                .param("sndbuf", Integer.toString(BUFFER_SIZE))
+                .param("rcvbuf", Integer.toString(BUFFER_SIZE))
+                .param(Message.FUNC, "protocol"));
+        protocolSent = true;
+
+        final ServerInfoCache.Entry cached = serverCache == null ? null : serverCache.get(serverKey);
+        if (cached == null) {
+            commands.add(createAutologin());
+            return;
+        }
+
+        // Server reply to 'protocol' comes with first command output, so cached values are used for first command
+        protocolServer = cached.protocol;
+        if (cached.rcvbuf > 0)
+            himark = Math.max(Math.min(cached.rcvbuf, BUFFER_SIZE), 1);
+        if (cached.unicode)
+            setUnicode();
+
+        if (cached.passwordEnabled && (cached.serverAddress == null || tickets.get(cached.serverAddress, username) == null)) {
+            commands.add(createLogin(handshake));
+        } else {
+            handshake.complete(true);
+        }
+    }
+
+    /**
+     * Implicit 'info' command, followed by 'login' if server requires password.
+     */
+    @NotNull
+    private Command createAutologin() {
+        final boolean[] needLogin = {false};
+        final Callback autologinCallback = (message, severityHolder) -> {
+            if (message.getFuncId() != Func.ClientFstatInfo)
+                throw new StreamCorruptedException("Unexpected message: " + message);
 
-        if (callback.tag()) {
+            // Ticket saved by another connection is used to answer 'client-Crypto' without login
+            final String serverAddress = message.getString("serverAddress");
+            final boolean passwordEnabled = "enabled".equals(message.getString("password"));
+            needLogin[0] = passwordEnabled && (serverAddress == null || tickets.get(serverAddress, username) == null);
+            if (serverCache != null && serverKey != null)
+                serverCache.put(serverKey, new ServerInfoCache.Entry(protocolServer, serverUnicode, serverRcvbuf, passwordEnabled, serverAddress));
+            return null;
+        };
+        final Command info = new Command(autologinCallback, "info");
+        info.loginRetry = false;
+        info.future.whenComplete((severity, e) -> {
+            if (e != null) {
+                handshake.completeExceptionally(e);
+            } else if (severity.isOk() && needLogin[0]) {
+                commands.addFirst(createLogin(handshake));
+            } else {
+                handshake.complete(severity.isOk());
+            }
+        });
+        return info;
+    }
+
+    /**
+     * Implicit 'login' command.
+     *
+     * @param result Completed with {@code true} if login succeeds.
+     */
+    @NotNull
+    private Command createLogin(@NotNull CompletableFuture<Boolean> result) {
+        final Command login = new Command((message, severityHolder) -> {
+            throw new StreamCorruptedException("Unexpected message: " + message);
+        }, "login");
+        login.loginRetry = false;
+        login.future.whenComplete((severity, e) -> {
+            if (e != null)
+                result.completeExceptionally(e);
+            else
+                result.complete(severity.isOk());
+        });
+        return login;
+    }
+
+    /**
+     * Command failed because of missing or expired ticket: login and run it again.
+     */
+    private void retryAfterLogin(@NotNull Command command) {
+        final ServerMessage authError = command.authError;
+        final ErrorSeverity severity = command.severityHolder.value;
+        command.loginRetry = false;
+        command.authError = null;
+        command.severityHolder.value = ErrorSeverity.None;
+        if (serverCache != null && serverKey != null)
+            serverCache.invalidate(serverKey);
+
+        final CompletableFuture<Boolean> loggedIn = new CompletableFuture<>();
+        loggedIn.whenComplete((ok, e) -> {
+            if (e != null) {
+                command.future.completeExceptionally(e);
+            } else if (ok) {
+                commands.addFirst(command);
+            } else {
+                messageOutput.output(authError);
+                command.future.complete(authError.getSeverity().compareTo(severity) > 0 ? authError.getSeverity() : severity);
+            }
+        });
+        commands.addFirst(createLogin(loggedIn));
+    }
+
+    private void startNext() throws IOException {
+        active = commands.poll();
+        if (active == null)
+            return;
+
+        final Message.Builder builder = new Message.Builder();
+        if (active.callback.tag()) {
             builder.param("tag", "");
         }
-        send(builder);
 
-        final Holder<ErrorSeverity> severityHolder = new Holder<>(ErrorSeverity.None);
+        for (String arg : active.args) {
+            builder.arg(arg);
+        }
+        builder.param(Message.FUNC, "user-" + active.func);
+        sendCommand(builder);
+    }
 
-        while (true) {
-            Message message = Message.recv(socket.getInputStream());
+    /**
+     * Dispatch message received from server to active command.
+     * <p>
+     * Any exception breaks connection: all queued commands are failed.
+     */
+    void receive(@NotNull Message message) throws IOException, InterruptedException {
+        try {
             if (verbose) {
                 show(">>", message);
             }
-            final String clientFunc = message.getFunc();
-            if (clientFunc.length() <= 0)
+            final Command command = active;
+            if (command == null)
+                throw new StreamCorruptedException("Unexpected message: " + message.getFunc());
+
+            final Func func = message.getFuncId();
+            if (func == Func.Unknown && message.getFunc().isEmpty())
                 throw new StreamCorruptedException();
 
-            if ("release".equals(clientFunc))
-                break;
+            if (func == Func.Release) {
+                // Blocking transport reads nothing after 'release', so it waits for replies here
+                if (!sendReplies(transport.isBlocking())) {
+                    // Completed by last reply
+                    releasing = command;
+                    pause();
+                    return;
+                }
+                release(command);
+                return;
+            }
 
-            final Callback builtin = funcs.get(clientFunc);
+            final Callback builtin = funcs.get(func);
             final Message.Builder response;
             if (builtin != null) {
-                response = builtin.exec(message, severityHolder);
+                response = builtin.exec(message, command.severityHolder);
             } else {
-                response = callback.exec(message, severityHolder);
+                response = command.callback.exec(message, command.severityHolder);
             }
             if (response != null) {
-                send(response);
+                if (replies.isEmpty()) {
+                    send(response);
+                } else {
+                    replies.add(CompletableFuture.completedFuture(response));
+                    sendReplies(false);
+                }
             }
+        } catch (Throwable e) {
+            fail(e);
+            throw e;
         }
+    }
+
+    private void release(@NotNull Command command) throws IOException {
+        active = null;
+        if (command.authError != null)
+            retryAfterLogin(command);
+        else
+            command.future.complete(command.severityHolder.value);
+        if (active == null)
+            startNext();
+    }
+
+    /**
+     * Mark connection as broken and fail all queued commands.
+     */
+    void fail(@NotNull Throwable e) {
+        if (failure == null)
+            failure = e;
+
+        uploads.clear();
+        replies.clear();
+        releasing = null;
 
-        return severityHolder.value.isOk();
+        final Command command = active;
+        active = null;
+        if (command != null)
+            command.future.completeExceptionally(e);
+
+        Command queued;
+        while ((queued = commands.poll()) != null)
+            queued.future.completeExceptionally(e);
     }
 
     private void send(@NotNull Message.Builder builder) throws IOException {
@@ -188,7 +850,25 @@ public final class Client implements AutoCloseable {
         if (verbose) {
             show("<<", msg);
         }
-        msg.send(socket.getOutputStream());
+        transport.send(msg, EMPTY_BYTES);
+    }
+
+    /**
+     * Send user command: {@link #baseMessage} parameters followed by command own ones.
+     */
+    private void sendCommand(@NotNull Message.Builder builder) throws IOException {
+        Message msg = builder.build();
+        if (verbose) {
+            final Message.Builder full = baseMessage.clone();
+            msg.getParams().forEach(full::param);
+            msg.getArgs().forEach(full::arg);
+            show("<<", full.build());
+        }
+
+        if (baseMessagePrefix == null) {
+            baseMessagePrefix = baseMessage.build().serializeParams();
+        }
+        transport.send(msg, baseMessagePrefix);
     }
 
     private void show(@NotNull String prefix, @NotNull Message msg) throws IOException {
@@ -202,6 +882,69 @@ public final class Client implements AutoCloseable {
                 .param(Message.FUNC, "flush2");
     }
 
+    /**
+     * Server has received all data up to 'fseq': continue uploads.
+     */
+    @Nullable
+    private Message.Builder flush2(@NotNull Message req, @NotNull Holder<ErrorSeverity> severityHolder) throws IOException {
+        final String fseq = req.getString("fseq");
+        if (fseq == null)
+            throw new StreamCorruptedException("Parameter 'fseq' is missing in flush2");
+
+        duplexAcked = Math.max(duplexAcked, Long.parseLong(fseq));
+        pumpUploads();
+        return null;
+    }
+
+    /**
+     * Send messages to server under flush1/flush2 flow control. Must be called from message loop.
+     * <p>
+     * Messages are sent while less than {@link #himark} bytes are not acknowledged by server, rest are sent
+     * on 'flush2'. So server is never blocked by full socket buffer while it sends to client.
+     */
+    void upload(@NotNull Upload source) throws IOException {
+        uploads.add(source);
+        if (uploads.size() == 1)
+            pumpUploads();
+    }
+
+    private void pumpUploads() throws IOException {
+        Upload source;
+        while ((source = uploads.peek()) != null) {
+            if (duplexSent - duplexAcked >= himark) {
+                // Wait for 'flush2'
+                if (duplexMarked < duplexSent)
+                    sendFlush1();
+                return;
+            }
+
+            final Message.Builder builder = source.next();
+            if (builder == null) {
+                uploads.poll();
+                continue;
+            }
+
+            final Message msg = builder.build();
+            duplexSent += msg.frameSize();
+            if (verbose) {
+                show("<<", msg);
+            }
+            transport.send(msg, EMPTY_BYTES);
+
+            // Mark often enough to get acknowledge before window is full
+            if (duplexSent - duplexMarked >= himark / 2)
+                sendFlush1();
+        }
+    }
+
+    private void sendFlush1() throws IOException {
+        duplexMarked = duplexSent;
+        send(new Message.Builder()
+                .param("fseq", Long.toString(duplexSent))
+                .param("himark", Integer.toString(himark))
+                .param(Message.FUNC, "flush1"));
+    }
+
     @Nullable
     private Message.Builder clientProtocol(@NotNull Message req, @NotNull Holder<ErrorSeverity> severityHolder) {
         String protocolVersionString = req.getString("server2");
@@ -214,36 +957,59 @@ public final class Client implements AutoCloseable {
             protocolServer = Integer.parseInt(protocolVersionString);
         }
 
-        if (req.getBytes("unicode") != null) {
-            baseMessage.param("unicode", "1");
+        final String rcvbuf = req.getString("rcvbuf");
+        if (rcvbuf != null) {
+            serverRcvbuf = Integer.parseInt(rcvbuf);
+            himark = Math.max(Math.min(serverRcvbuf, BUFFER_SIZE), 1);
+        }
+
+        final boolean unicode = req.getBytes("unicode") != null;
+        if (unicode != serverUnicode && serverCache != null && serverKey != null) {
+            // Cached capabilities are stale
+            serverCache.invalidate(serverKey);
         }
+        if (unicode)
+            setUnicode();
 
         return null;
     }
 
+    private void setUnicode() {
+        if (serverUnicode)
+            return;
+
+        serverUnicode = true;
+        baseMessage.param("unicode", "1");
+        baseMessagePrefix = null;
+    }
+
     @Nullable
-    private Message.Builder clientSetPassword(@NotNull Message req, @NotNull Holder<ErrorSeverity> severityHolder) {
+    private Message.Builder clientSetPassword(@NotNull Message req, @NotNull Holder<ErrorSeverity> severityHolder) throws IOException {
         final byte[] token = req.getBytes("digest");
         final byte[] ticket = req.getBytes("data");
         final String serverAddress = req.getString("serverAddress");
-        if (token != null && secretHash != null) {
-            secretTokens.put(serverAddress, Mangle.XOR(ticket, Mangle.InMD5(token, secretHash)));
+        if (serverAddress == null)
+            return null;
+        if (ticket == null || ticket.length == 0) {
+            tickets.remove(serverAddress, username);
+        } else if (token != null && secretHash != null) {
+            tickets.put(serverAddress, username, new String(Mangle.XOR(ticket, Mangle.InMD5(token, secretHash)), StandardCharsets.ISO_8859_1));
         }
         return null;
     }
 
     @Nullable
-    private Message.Builder clientCrypto(@NotNull Message req, @NotNull Holder<ErrorSeverity> severityHolder) {
+    private Message.Builder clientCrypto(@NotNull Message req, @NotNull Holder<ErrorSeverity> severityHolder) throws IOException {
         final byte[] confirm = req.getBytes("confirm");
         final String serverAddress = req.getString("serverAddress");
-        final byte[] secretToken = secretTokens.get(serverAddress);
-        if (secretToken == null) {
+        final String ticket = serverAddress == null ? null : tickets.get(serverAddress, username);
+        if (ticket == null) {
             return new Message.Builder()
                     .param(Message.FUNC, confirm)
                     .param("token", "");
         }
         final byte[] token = req.getBytes("token");
-        byte[] result = md5(token, secretToken);
+        byte[] result = md5(token, ticket.getBytes(StandardCharsets.ISO_8859_1));
 
         return new Message.Builder()
                 .param(Message.FUNC, confirm)
@@ -282,13 +1048,53 @@ public final class Client implements AutoCloseable {
 
     @Override
     public void close() throws Exception {
-        socket.close();
+        transport.close();
+        final ExecutorService executor;
+        synchronized (workerLock) {
+            executor = worker;
+            closed = true;
+        }
+        // Queued commands fail on closed transport
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    private static final class Command {
+        @NotNull
+        private final Callback callback;
+        @NotNull
+        private final String func;
+        @NotNull
+        private final String[] args;
+        @NotNull
+        private final Holder<ErrorSeverity> severityHolder = new Holder<>(ErrorSeverity.None);
+        @NotNull
+        private final CompletableFuture<ErrorSeverity> future = new CompletableFuture<>();
+        /**
+         * Command may be run again after implicit 'login' if it fails with authentication error.
+         */
+        private boolean loginRetry = true;
+        @Nullable
+        private ServerMessage authError;
+
+        private Command(@NotNull Callback callback, @NotNull String func, @NotNull String... args) {
+            this.callback = callback;
+            this.func = func;
+            this.args = args;
+        }
     }
 
     @FunctionalInterface
     public interface MessageOutput {
 
         void output(@NotNull ErrorSeverity severity, @NotNull String message);
+
+        /**
+         * Server message. Override to inspect message code or to skip formatting of unneeded messages.
+         */
+        default void output(@NotNull ServerMessage message) {
+            output(message.getSeverity(), message.getText());
+        }
     }
 
     @FunctionalInterface
@@ -298,9 +1104,29 @@ public final class Client implements AutoCloseable {
             return true;
         }
 
+        /**
+         * @return {@code true} if callback doesn't use received messages after {@link #exec} returns unless it
+         * calls {@link Message#retain()}. Then messages are received into pooled buffers.
+         */
+        default boolean poolFrames() {
+            return false;
+        }
+
         Message.Builder exec(@NotNull Message message, Holder<ErrorSeverity> severityHolder) throws IOException, InterruptedException;
     }
 
+    /**
+     * Source of messages sent to server under flow control.
+     */
+    @FunctionalInterface
+    interface Upload {
+        /**
+         * @return Next message or {@code null} at end of upload.
+         */
+        @Nullable
+        Message.Builder next() throws IOException;
+    }
+
     @FunctionalInterface
     public interface InputResolver {
         @NotNull
@@ -0,0 +1,357 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of already negotiated connections.
+ * <p>
+ * Connections are kept per (server, user, client workspace). Idle connections are closed after idle timeout
+ * and probed with 'info' command after keepalive interval. Connections broken by I/O or protocol error
+ * are discarded on release.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class ClientPool implements AutoCloseable {
+
+    @NotNull
+    private final Factory factory;
+    private final int maxSize;
+    private final long idleTimeout;
+    private final long keepaliveInterval;
+    @NotNull
+    private final ReentrantLock lock = new ReentrantLock();
+    @NotNull
+    private final Condition released = lock.newCondition();
+    @NotNull
+    private final Map<Key, Partition> partitions = new HashMap<>();
+    @NotNull
+    private final ScheduledExecutorService maintenance;
+    private boolean closed = false;
+
+    /**
+     * @param factory           Connection factory.
+     * @param maxSize           Maximum connection count per key.
+     * @param idleTimeout       Idle connection lifetime in milliseconds.
+     * @param keepaliveInterval Idle time in milliseconds after which connection is probed.
+     */
+    public ClientPool(@NotNull Factory factory, int maxSize, long idleTimeout, long keepaliveInterval) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Invalid pool size: " + maxSize);
+
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.keepaliveInterval = keepaliveInterval;
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "p4-client-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long period = Math.max(Math.min(idleTimeout, keepaliveInterval) / 2, 1);
+        maintenance.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take connection from pool or open new one. Waits for release if pool is exhausted.
+     */
+    @NotNull
+    public Lease borrow(@NotNull Key key) throws IOException, InterruptedException {
+        final Partition partition;
+        lock.lock();
+        try {
+            while (true) {
+                if (closed)
+                    throw new IllegalStateException("Pool is closed");
+
+                final Partition current = partitions.computeIfAbsent(key, k -> new Partition());
+                final Entry entry = current.idle.pollFirst();
+                if (entry != null) {
+                    if (!entry.client.isBroken())
+                        return new Lease(key, entry.client);
+
+                    current.size--;
+                    closeQuietly(entry.client);
+                    continue;
+                }
+                if (current.size < maxSize) {
+                    current.size++;
+                    partition = current;
+                    break;
+                }
+                released.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Client client = null;
+        try {
+            client = factory.create(key);
+            if (!client.negotiate())
+                throw new IOException("Can't negotiate session: " + key);
+            return new Lease(key, client);
+        } catch (Throwable e) {
+            if (client != null)
+                closeQuietly(client);
+            discard(partition);
+            throw e;
+        }
+    }
+
+    private void release(@NotNull Key key, @NotNull Client client, boolean invalid) {
+        final long now = System.currentTimeMillis();
+        release(key, new Entry(client, now, now), invalid);
+    }
+
+    private void release(@NotNull Key key, @NotNull Entry entry, boolean invalid) {
+        final Client client = entry.client;
+        lock.lock();
+        try {
+            final Partition partition = partitions.get(key);
+            if (partition != null && !closed && !invalid && !client.isBroken()) {
+                partition.idle.addFirst(entry);
+                released.signalAll();
+                return;
+            }
+            if (partition != null)
+                discard(partition);
+        } finally {
+            lock.unlock();
+        }
+        closeQuietly(client);
+    }
+
+    private void discard(@NotNull Partition partition) {
+        lock.lock();
+        try {
+            partition.size--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close expired idle connections and probe ones idle for keepalive interval.
+     */
+    private void maintain() {
+        final List<Client> expired = new ArrayList<>();
+        final Map<Entry, Key> probes = new HashMap<>();
+        final long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            for (Map.Entry<Key, Partition> item : partitions.entrySet()) {
+                final Partition partition = item.getValue();
+                for (Iterator<Entry> iter = partition.idle.iterator(); iter.hasNext(); ) {
+                    final Entry entry = iter.next();
+                    if (now - entry.lastUsed >= idleTimeout || entry.client.isBroken()) {
+                        iter.remove();
+                        partition.size--;
+                        expired.add(entry.client);
+                    } else if (now - entry.lastChecked >= keepaliveInterval) {
+                        iter.remove();
+                        probes.put(entry, item.getKey());
+                    }
+                }
+            }
+            if (!expired.isEmpty())
+                released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        for (Client client : expired)
+            closeQuietly(client);
+
+        for (Map.Entry<Entry, Key> probe : probes.entrySet()) {
+            final Entry entry = probe.getKey();
+            final Client client = entry.client;
+            boolean alive;
+            try {
+                alive = client.p4((message, severityHolder) -> null, "info");
+            } catch (IOException | RuntimeException e) {
+                alive = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                alive = false;
+            }
+            release(probe.getValue(), new Entry(client, entry.lastUsed, System.currentTimeMillis()), !alive);
+        }
+    }
+
+    private static void closeQuietly(@NotNull Client client) {
+        try {
+            client.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * Close idle connections. Borrowed connections are closed on release.
+     */
+    @Override
+    public void close() {
+        final List<Client> idle = new ArrayList<>();
+        lock.lock();
+        try {
+            closed = true;
+            for (Partition partition : partitions.values()) {
+                for (Entry entry : partition.idle)
+                    idle.add(entry.client);
+                partition.size -= partition.idle.size();
+                partition.idle.clear();
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        maintenance.shutdownNow();
+        for (Client client : idle)
+            closeQuietly(client);
+    }
+
+    @FunctionalInterface
+    public interface Factory {
+        /**
+         * Open new connection for key.
+         */
+        @NotNull
+        Client create(@NotNull Key key) throws IOException;
+    }
+
+    /**
+     * Connection identity: server address, user name and client workspace.
+     */
+    public static final class Key {
+        @NotNull
+        private final String server;
+        @NotNull
+        private final String user;
+        @NotNull
+        private final String client;
+
+        public Key(@NotNull String server, @NotNull String user, @NotNull String client) {
+            this.server = server;
+            this.user = user;
+            this.client = client;
+        }
+
+        @NotNull
+        public String getServer() {
+            return server;
+        }
+
+        @NotNull
+        public String getUser() {
+            return user;
+        }
+
+        @NotNull
+        public String getClient() {
+            return client;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key key = (Key) o;
+            return server.equals(key.server) && user.equals(key.user) && client.equals(key.client);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(server, user, client);
+        }
+
+        @Override
+        public String toString() {
+            return "Key{" +
+                    "server=" + server +
+                    ", user=" + user +
+                    ", client=" + client +
+                    '}';
+        }
+    }
+
+    /**
+     * Borrowed connection. Closing lease returns connection to pool.
+     */
+    public final class Lease implements AutoCloseable {
+        @NotNull
+        private final Key key;
+        @NotNull
+        private final Client client;
+        private boolean invalid = false;
+        private boolean released = false;
+
+        private Lease(@NotNull Key key, @NotNull Client client) {
+            this.key = key;
+            this.client = client;
+        }
+
+        @NotNull
+        public Client getClient() {
+            return client;
+        }
+
+        /**
+         * Mark connection as unusable: it will be closed instead of returning to pool.
+         */
+        public void invalidate() {
+            invalid = true;
+        }
+
+        @Override
+        public void close() {
+            if (released)
+                return;
+
+            released = true;
+            release(key, client, invalid);
+        }
+    }
+
+    private static final class Partition {
+        @NotNull
+        private final ArrayDeque<Entry> idle = new ArrayDeque<>();
+        /**
+         * Idle and borrowed connection count.
+         */
+        private int size;
+    }
+
+    private static final class Entry {
+        @NotNull
+        private final Client client;
+        /**
+         * Time of return to pool by borrower.
+         */
+        private final long lastUsed;
+        /**
+         * Time of last successful command, including keepalive probe.
+         */
+        private final long lastChecked;
+
+        private Entry(@NotNull Client client, long lastUsed, long lastChecked) {
+            this.client = client;
+            this.lastUsed = lastUsed;
+            this.lastChecked = lastChecked;
+        }
+    }
+}
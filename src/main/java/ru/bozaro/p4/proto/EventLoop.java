@@ -0,0 +1,639 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Single thread driving many non-blocking client connections.
+ * <p>
+ * Frames are parsed as they arrive and dispatched to {@link Client.Callback} on event loop thread,
+ * so callbacks must not block. When budget of {@link BufferPool} is exhausted, connection stops reading
+ * until some buffer is released.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class EventLoop implements AutoCloseable {
+
+    private static final int READ_BUFFER_SIZE = 0x10000;
+    /**
+     * Maximum buffer count per gathering write.
+     */
+    private static final int MAX_GATHER = 64;
+
+    @NotNull
+    private final Selector selector;
+    @NotNull
+    private final Thread thread;
+    /**
+     * Queued tasks, guarded by itself together with {@link #terminated}.
+     */
+    @NotNull
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    @NotNull
+    private final FrameLimits limits;
+    @NotNull
+    private final BufferPool pool;
+    private volatile boolean closed = false;
+    /**
+     * Event loop thread no longer runs queued tasks.
+     */
+    private boolean terminated = false;
+
+    public EventLoop() throws IOException {
+        this(FrameLimits.DEFAULT);
+    }
+
+    /**
+     * @param limits Limits of frames received by all connections.
+     */
+    public EventLoop(@NotNull FrameLimits limits) throws IOException {
+        this(limits, BufferPool.getDefault());
+    }
+
+    /**
+     * @param limits Limits of frames received by all connections.
+     * @param pool   Pool of connection buffers. New connections wait while its budget is exhausted.
+     */
+    public EventLoop(@NotNull FrameLimits limits, @NotNull BufferPool pool) throws IOException {
+        this.limits = limits;
+        this.pool = pool;
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, "p4-event-loop");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Open non-blocking connection. Commands may be queued before connection is established.
+     */
+    @NotNull
+    public Client connect(@NotNull SocketAddress address,
+                          @NotNull String username,
+                          @NotNull String password,
+                          @NotNull String client,
+                          @NotNull Client.InputResolver inputResolver,
+                          @NotNull Client.MessageOutput messageOutput,
+                          boolean verbose) throws IOException {
+        return connect(address, username, password, client, inputResolver, messageOutput, new MemoryTicketStore(), null, verbose);
+    }
+
+    /**
+     * Open non-blocking connection using shared login tickets and server capabilities.
+     */
+    @NotNull
+    public Client connect(@NotNull SocketAddress address,
+                          @NotNull String username,
+                          @NotNull String password,
+                          @NotNull String client,
+                          @NotNull Client.InputResolver inputResolver,
+                          @NotNull Client.MessageOutput messageOutput,
+                          @NotNull TicketStore tickets,
+                          @Nullable ServerInfoCache serverCache,
+                          boolean verbose) throws IOException {
+        final ByteBuffer input = pool.acquireIO(READ_BUFFER_SIZE, pool.isDirect());
+        final SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+        } catch (IOException | RuntimeException e) {
+            pool.releaseIO(input);
+            throw e;
+        }
+        final Session session = new Session(channel, input);
+        try {
+            channel.configureBlocking(false);
+            final Client result = new Client(session, username, password, client, inputResolver, messageOutput, tickets,
+                    serverCache, serverCache == null ? null : ServerInfoCache.key(address, username), verbose);
+            session.client = result;
+            final boolean connected = channel.connect(address);
+            execute(() -> session.register(connected));
+            return result;
+        } catch (IOException | RuntimeException e) {
+            session.close(e);
+            throw e;
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run task on event loop thread.
+     */
+    public void execute(@NotNull Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+        synchronized (tasks) {
+            if (terminated) {
+                // Event loop is stopped: run task here, still one at a time
+                task.run();
+                return;
+            }
+            tasks.add(task);
+        }
+        selector.wakeup();
+    }
+
+    private void runTasks() {
+        while (true) {
+            final Runnable task;
+            synchronized (tasks) {
+                task = tasks.poll();
+            }
+            if (task == null)
+                return;
+            task.run();
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                closed = true;
+                break;
+            }
+
+            runTasks();
+
+            for (SelectionKey key : selector.selectedKeys()) {
+                final Session session = (Session) key.attachment();
+                session.process(key);
+            }
+            selector.selectedKeys().clear();
+        }
+
+        final ClosedChannelException closedException = new ClosedChannelException();
+        for (SelectionKey key : selector.keys())
+            ((Session) key.attachment()).close(closedException);
+
+        // Tasks queued later are run by execute() itself
+        synchronized (tasks) {
+            terminated = true;
+            runTasks();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Stop event loop and close its connections. Waits for event loop thread even if interrupted, interrupt status
+     * is preserved.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        if (inEventLoop())
+            return;
+
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private final class Session implements Transport {
+        @NotNull
+        private final SocketChannel channel;
+        /**
+         * Read buffer from {@link #pool}.
+         */
+        @NotNull
+        private final ByteBuffer input;
+        @NotNull
+        private final byte[] header = new byte[Message.HEADER_SIZE];
+        @NotNull
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        /**
+         * Buffers of {@link #output} taken from {@link #pool}, in the same order.
+         */
+        @NotNull
+        private final ArrayDeque<ByteBuffer> pooledOutput = new ArrayDeque<>();
+        /**
+         * Frames waiting for budget to be encoded, see {@link #starved}.
+         */
+        @NotNull
+        private final ArrayDeque<PendingFrame> unencoded = new ArrayDeque<>();
+        private boolean released;
+        private boolean decoding;
+        @Nullable
+        private Client client;
+        @Nullable
+        private SelectionKey key;
+        private boolean connected;
+        private boolean paused;
+        /**
+         * Budget of {@link #pool} is exhausted: connection doesn't read until some buffer is released.
+         */
+        private boolean starved;
+        /**
+         * Body of frame larger than read buffer.
+         */
+        @Nullable
+        private ByteBuffer largeFrame;
+        private boolean largeFramePooled;
+        /**
+         * Decoder of frame larger than {@link FrameLimits#getSpillThreshold()}.
+         */
+        @Nullable
+        private FrameDecoder spillFrame;
+
+        private Session(@NotNull SocketChannel channel, @NotNull ByteBuffer input) {
+            this.channel = channel;
+            this.input = input;
+        }
+
+        private void register(boolean connected) {
+            if (closed || !channel.isOpen()) {
+                close(new ClosedChannelException());
+                return;
+            }
+            try {
+                this.connected = connected;
+                key = channel.register(selector, connected ? interestOps() : SelectionKey.OP_CONNECT, this);
+                if (connected)
+                    flush();
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void process(@NotNull SelectionKey key) {
+            try {
+                if (!key.isValid())
+                    return;
+
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    connected = true;
+                    key.interestOps(interestOps());
+                    flush();
+                }
+                if (key.isValid() && key.isWritable())
+                    flush();
+                if (key.isValid() && key.isReadable())
+                    read();
+            } catch (Throwable e) {
+                close(e);
+            }
+        }
+
+        private void read() throws IOException, InterruptedException {
+            if (paused || starved)
+                return;
+
+            final int size = channel.read(input);
+            if (size < 0)
+                throw new EOFException("Connection closed by server");
+
+            decodeInput();
+        }
+
+        /**
+         * Decode received data. Connection may be closed by callbacks meanwhile, so read buffer is returned
+         * to pool only after decoding.
+         */
+        private void decodeInput() throws IOException, InterruptedException {
+            input.flip();
+            decoding = true;
+            try {
+                decode();
+            } finally {
+                decoding = false;
+                if (channel.isOpen()) {
+                    input.compact();
+                } else {
+                    releaseInput();
+                }
+            }
+        }
+
+        private void releaseInput() {
+            if (!released) {
+                released = true;
+                pool.releaseIO(input);
+            }
+        }
+
+        private void decode() throws IOException, InterruptedException {
+            while (!paused && !starved && channel.isOpen()) {
+                if (spillFrame != null) {
+                    final Message message = spillFrame.decode(input);
+                    if (message == null)
+                        return;
+
+                    spillFrame = null;
+                    deliver(message);
+                    continue;
+                }
+
+                if (largeFrame != null) {
+                    final int size = Math.min(input.remaining(), largeFrame.remaining());
+                    input.get(largeFrame.array(), largeFrame.position(), size);
+                    largeFrame.position(largeFrame.position() + size);
+                    if (largeFrame.hasRemaining())
+                        return;
+
+                    final ByteBuffer frame = largeFrame;
+                    largeFrame = null;
+                    deliver(parse(frame, frame.limit(), largeFramePooled));
+                    continue;
+                }
+
+                if (input.remaining() < Message.HEADER_SIZE)
+                    return;
+
+                final int position = input.position();
+                for (int i = 0; i < header.length; ++i)
+                    header[i] = input.get(position + i);
+                final int length = Message.frameLength(header, 0);
+                limits.checkFrame(length);
+                if (length > limits.getSpillThreshold()) {
+                    input.position(position + Message.HEADER_SIZE);
+                    spillFrame = new FrameDecoder(limits, length);
+                    continue;
+                }
+                final boolean large = length > input.capacity() - Message.HEADER_SIZE;
+                if (!large && input.remaining() < Message.HEADER_SIZE + length)
+                    return;
+
+                // Frame is consumed only with its buffer, so header is decoded again after starvation
+                final boolean pooled = client != null && client.poolFrames();
+                final ByteBuffer frame = pooled ? acquire(length) : ByteBuffer.allocate(length);
+                if (frame == null)
+                    return;
+
+                frame.limit(length);
+                input.position(position + Message.HEADER_SIZE);
+                if (large) {
+                    largeFrame = frame;
+                    largeFramePooled = pooled;
+                    continue;
+                }
+                input.get(frame.array(), 0, length);
+                deliver(parse(frame, length, pooled));
+            }
+        }
+
+        @NotNull
+        private Message parse(@NotNull ByteBuffer frame, int length, boolean pooled) throws IOException {
+            if (!pooled)
+                return Message.parse(frame.array(), 0, length);
+
+            try {
+                return Message.parse(frame, length, pool);
+            } catch (IOException | RuntimeException e) {
+                pool.release(frame);
+                throw e;
+            }
+        }
+
+        private void deliver(@NotNull Message message) throws IOException, InterruptedException {
+            try {
+                if (client != null)
+                    client.receive(message);
+            } finally {
+                message.release();
+            }
+        }
+
+        /**
+         * Acquire heap buffer without waiting for budget.
+         *
+         * @return Buffer or {@code null} if budget is exhausted: then connection is starved until some buffer
+         * is released, see {@link #budgetAvailable()}.
+         */
+        @Nullable
+        private ByteBuffer acquire(int size) {
+            final ByteBuffer buffer = pool.tryAcquire(size, false, this::budgetAvailable);
+            if (buffer == null && !starved) {
+                starved = true;
+                updateInterestOps();
+            }
+            return buffer;
+        }
+
+        /**
+         * Called by thread which released buffer.
+         */
+        private void budgetAvailable() {
+            execute(() -> {
+                if (!starved || !channel.isOpen())
+                    return;
+
+                starved = false;
+                try {
+                    final boolean idle = output.isEmpty();
+                    while (!unencoded.isEmpty() && encode(unencoded.peek().message, unencoded.peek().prefix))
+                        unencoded.poll();
+                    if (idle)
+                        flush();
+                    if (starved)
+                        return;
+
+                    updateInterestOps();
+                    // Frames received before starvation
+                    if (!decoding)
+                        decodeInput();
+                } catch (Throwable e) {
+                    close(e);
+                }
+            });
+        }
+
+        private void flush() throws IOException {
+            if (!connected || key == null)
+                return;
+
+            while (!output.isEmpty()) {
+                final int count = Math.min(output.size(), MAX_GATHER);
+                final ByteBuffer[] pending = new ByteBuffer[count];
+                final Iterator<ByteBuffer> iter = output.iterator();
+                for (int i = 0; i < count; ++i)
+                    pending[i] = iter.next();
+
+                channel.write(pending);
+                while (!output.isEmpty() && !output.peek().hasRemaining()) {
+                    final ByteBuffer written = output.poll();
+                    if (pooledOutput.peek() == written)
+                        pool.release(pooledOutput.poll());
+                }
+                if (pending[count - 1].hasRemaining())
+                    break;
+            }
+            key.interestOps(interestOps());
+        }
+
+        private int interestOps() {
+            return (paused || starved ? 0 : SelectionKey.OP_READ) | (output.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        }
+
+        private void updateInterestOps() {
+            if (key != null && key.isValid() && connected)
+                key.interestOps(interestOps());
+        }
+
+        private void close(@NotNull Throwable cause) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            output.clear();
+            unencoded.clear();
+            while (!pooledOutput.isEmpty())
+                pool.release(pooledOutput.poll());
+            if (!decoding)
+                releaseInput();
+            if (largeFrame != null && largeFramePooled)
+                pool.release(largeFrame);
+            largeFrame = null;
+            if (spillFrame != null) {
+                try {
+                    spillFrame.close();
+                } catch (IOException ignored) {
+                }
+                spillFrame = null;
+            }
+            if (client != null)
+                client.fail(cause);
+        }
+
+        @Override
+        public void send(@NotNull Message message, @NotNull byte[] prefix) throws IOException {
+            if (!channel.isOpen())
+                throw new ClosedChannelException();
+
+            // Frames are sent in order: after starvation, frame waits for frames before it
+            final boolean idle = output.isEmpty();
+            if (!unencoded.isEmpty() || !encode(message, prefix))
+                unencoded.add(new PendingFrame(message, prefix));
+            if (idle)
+                flush();
+        }
+
+        /**
+         * Add frame to output. Frame without external values is encoded into pooled buffer, event loop never
+         * waits for budget.
+         *
+         * @return {@code false} if budget is exhausted.
+         */
+        private boolean encode(@NotNull Message message, @NotNull byte[] prefix) throws IOException {
+            if (message.hasBuffers()) {
+                Collections.addAll(output, message.toBuffers(prefix));
+                return true;
+            }
+
+            final long size = (long) prefix.length + message.frameSize();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Message is too large: " + size + " bytes");
+
+            final ByteBuffer buffer = acquire((int) size);
+            if (buffer == null)
+                return false;
+
+            try {
+                buffer.limit(message.serialize(buffer.array(), 0, prefix));
+            } catch (RuntimeException e) {
+                pool.release(buffer);
+                throw e;
+            }
+            output.add(buffer);
+            pooledOutput.add(buffer);
+            return true;
+        }
+
+        @Override
+        public void execute(@NotNull Runnable task) {
+            EventLoop.this.execute(task);
+        }
+
+        @Override
+        public void await(@NotNull Client client, @NotNull Future<?> future) throws InterruptedException {
+            if (inEventLoop())
+                throw new IllegalStateException("Can't wait for command completion on event loop thread");
+
+            try {
+                future.get();
+            } catch (ExecutionException ignored) {
+                // Reported by caller
+            }
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return false;
+        }
+
+        @Override
+        public void pause() {
+            execute(() -> {
+                paused = true;
+                updateInterestOps();
+            });
+        }
+
+        @Override
+        public void resume() {
+            execute(() -> {
+                if (!paused)
+                    return;
+                paused = false;
+                if (key == null || !key.isValid())
+                    return;
+                try {
+                    updateInterestOps();
+                    // Frames received before pause. Resumed by callback: decoding continues by itself
+                    if (!decoding)
+                        decodeInput();
+                } catch (Throwable e) {
+                    close(e);
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            execute(() -> close(new ClosedChannelException()));
+        }
+    }
+
+    private static final class PendingFrame {
+        @NotNull
+        private final Message message;
+        @NotNull
+        private final byte[] prefix;
+
+        private PendingFrame(@NotNull Message message, @NotNull byte[] prefix) {
+            this.message = message;
+            this.prefix = prefix;
+        }
+    }
+}
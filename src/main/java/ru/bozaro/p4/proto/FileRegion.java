@@ -0,0 +1,68 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Parameter value stored in file region (see {@link Message.Builder#param(String, FileChannel, long, long)}).
+ * <p>
+ * Region is sent by {@link FileChannel#transferTo}, so file content is not copied into heap.
+ *
+ * @author Artem V. Navrotskiy
+ */
+final class FileRegion {
+
+    @NotNull
+    private final FileChannel channel;
+    private final long position;
+    private final int length;
+
+    FileRegion(@NotNull FileChannel channel, long position, int length) {
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Read-only mapping of region.
+     */
+    @NotNull
+    ByteBuffer map() throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    /**
+     * Copy region into array. Used when frame is encoded into single buffer.
+     */
+    void read(@NotNull byte[] buf, int offset) {
+        final ByteBuffer target = ByteBuffer.wrap(buf, offset, length);
+        try {
+            while (target.hasRemaining()) {
+                if (channel.read(target, position + target.position() - offset) < 0)
+                    throw new EOFException("File region is truncated");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void transferTo(@NotNull WritableByteChannel target) throws IOException {
+        final long end = position + length;
+        for (long current = position; current < end; ) {
+            final long size = channel.transferTo(current, end - current, target);
+            if (size <= 0 && current >= channel.size())
+                throw new EOFException("File region is truncated");
+            current += size;
+        }
+    }
+}
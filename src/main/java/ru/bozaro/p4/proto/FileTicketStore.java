@@ -0,0 +1,287 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ticket store backed by P4TICKETS file: one 'serverAddress=user:ticket' line per ticket.
+ * <p>
+ * File is locked while it is read or written, so it may be shared with other processes, including
+ * native p4 client. Parsed content is cached until file identity, size, modification or change time changes:
+ * modification time alone misses replacement by ticket of same length within timestamp granularity.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class FileTicketStore implements TicketStore {
+
+    /**
+     * File locks are held by whole JVM, so access to same file from one JVM is serialized by monitor.
+     */
+    @NotNull
+    private static final Map<Path, Object> monitors = new ConcurrentHashMap<>();
+
+    @NotNull
+    private final Path path;
+    @NotNull
+    private final Object monitor;
+    @NotNull
+    private volatile Snapshot snapshot = new Snapshot(null, Collections.emptyList());
+
+    public FileTicketStore(@NotNull Path path) {
+        this.path = path.toAbsolutePath().normalize();
+        this.monitor = monitors.computeIfAbsent(this.path, p -> new Object());
+    }
+
+    /**
+     * Ticket file used by p4 client: $P4TICKETS, ~/.p4tickets or %USERPROFILE%\p4tickets.txt on Windows.
+     */
+    @NotNull
+    public static Path defaultPath() {
+        final String tickets = System.getenv("P4TICKETS");
+        if (tickets != null && !tickets.isEmpty())
+            return Paths.get(tickets);
+
+        final String home = System.getProperty("user.home");
+        if (System.getProperty("os.name", "").startsWith("Windows"))
+            return Paths.get(home, "p4tickets.txt");
+        return Paths.get(home, ".p4tickets");
+    }
+
+    @NotNull
+    public Path getPath() {
+        return path;
+    }
+
+    @Nullable
+    @Override
+    public String get(@NotNull String serverAddress, @NotNull String user) throws IOException {
+        return read().tickets.get(key(serverAddress, user));
+    }
+
+    @Override
+    public void put(@NotNull String serverAddress, @NotNull String user, @NotNull String ticket) throws IOException {
+        update(serverAddress, user, ticket);
+    }
+
+    @Override
+    public void remove(@NotNull String serverAddress, @NotNull String user) throws IOException {
+        update(serverAddress, user, null);
+    }
+
+    @NotNull
+    private static String key(@NotNull String serverAddress, @NotNull String user) {
+        return serverAddress + '=' + user;
+    }
+
+    @NotNull
+    private Snapshot read() throws IOException {
+        final Snapshot current = snapshot;
+        if (Objects.equals(current.stamp, stamp()))
+            return current;
+
+        synchronized (monitor) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                final FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+                try {
+                    return snapshot = load(channel);
+                } finally {
+                    lock.release();
+                }
+            } catch (NoSuchFileException e) {
+                return snapshot = new Snapshot(null, Collections.emptyList());
+            }
+        }
+    }
+
+    private void update(@NotNull String serverAddress, @NotNull String user, @Nullable String ticket) throws IOException {
+        final String key = key(serverAddress, user);
+        synchronized (monitor) {
+            create();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final FileLock lock = channel.lock();
+                try {
+                    write(channel, key, ticket);
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private void write(@NotNull FileChannel channel, @NotNull String key, @Nullable String ticket) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        boolean found = false;
+        for (String line : load(channel).lines) {
+            if (!key.equals(keyOf(line))) {
+                lines.add(line);
+            } else if (ticket != null && !found) {
+                lines.add(key + ':' + ticket);
+                found = true;
+            }
+        }
+        if (ticket != null && !found)
+            lines.add(key + ':' + ticket);
+
+        final StringBuilder content = new StringBuilder();
+        for (String line : lines)
+            content.append(line).append('\n');
+
+        final ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+        channel.truncate(0);
+        channel.position(0);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        channel.force(false);
+
+        snapshot = new Snapshot(stamp(), lines);
+    }
+
+    /**
+     * Create file readable by owner only.
+     */
+    private void create() throws IOException {
+        if (Files.exists(path))
+            return;
+
+        Files.createDirectories(path.getParent());
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            try {
+                Files.createFile(path);
+            } catch (FileAlreadyExistsException ignored) {
+            }
+        } catch (FileAlreadyExistsException ignored) {
+        }
+    }
+
+    /**
+     * @return File state or {@code null} if file doesn't exist.
+     */
+    @Nullable
+    private Stamp stamp() throws IOException {
+        final BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        FileTime changed;
+        try {
+            changed = (FileTime) Files.getAttribute(path, "unix:ctime");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // Not available on this platform
+            changed = null;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return new Stamp(attrs, changed);
+    }
+
+    @NotNull
+    private Snapshot load(@NotNull FileChannel channel) throws IOException {
+        // Attributes are taken before reading: concurrent change is detected on next access
+        final Stamp stamp = stamp();
+        final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // Read whole file
+        }
+        final List<String> lines = new ArrayList<>();
+        for (String line : new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).split("\r?\n")) {
+            if (!line.isEmpty())
+                lines.add(line);
+        }
+        return new Snapshot(stamp, lines);
+    }
+
+    /**
+     * Ticket key of 'serverAddress=user:ticket' line.
+     */
+    @Nullable
+    private static String keyOf(@NotNull String line) {
+        final int eq = line.indexOf('=');
+        final int colon = line.lastIndexOf(':');
+        if (eq <= 0 || colon <= eq)
+            return null;
+        return line.substring(0, colon);
+    }
+
+    private static final class Snapshot {
+        @Nullable
+        private final Stamp stamp;
+        @NotNull
+        private final List<String> lines;
+        @NotNull
+        private final Map<String, String> tickets;
+
+        private Snapshot(@Nullable Stamp stamp, @NotNull List<String> lines) {
+            this.stamp = stamp;
+            this.lines = lines;
+            this.tickets = new HashMap<>();
+            for (String line : lines) {
+                final String key = keyOf(line);
+                if (key != null)
+                    tickets.putIfAbsent(key, line.substring(key.length() + 1));
+            }
+        }
+    }
+
+    /**
+     * File state used to detect changes by other processes.
+     */
+    private static final class Stamp {
+        @Nullable
+        private final Object fileKey;
+        @NotNull
+        private final FileTime modified;
+        @Nullable
+        private final FileTime changed;
+        private final long size;
+
+        private Stamp(@NotNull BasicFileAttributes attrs, @Nullable FileTime changed) {
+            this.fileKey = attrs.fileKey();
+            this.modified = attrs.lastModifiedTime();
+            this.changed = changed;
+            this.size = attrs.size();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            final Stamp stamp = (Stamp) o;
+            return size == stamp.size
+                    && Objects.equals(fileKey, stamp.fileKey)
+                    && modified.equals(stamp.modified)
+                    && Objects.equals(changed, stamp.changed);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileKey, modified, changed, size);
+        }
+    }
+}
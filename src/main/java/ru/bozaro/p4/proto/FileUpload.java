@@ -0,0 +1,136 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Sends local file content for 'client-SendFile'.
+ * <p>
+ * File is mapped into memory window by window and sent in chunks directly from mapped buffers. MD5 digest is
+ * computed in the same pass.
+ *
+ * @author Artem V. Navrotskiy
+ */
+final class FileUpload implements Client.Upload {
+
+    /**
+     * Content size per 'write' message.
+     */
+    private static final int CHUNK_SIZE = 0x10000;
+    /**
+     * Size of file region mapped at once.
+     */
+    private static final long MAP_SIZE = 0x1000000;
+
+    @NotNull
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    @NotNull
+    private final Message request;
+    @NotNull
+    private final FileChannel channel;
+    @NotNull
+    private final MessageDigest digest;
+    private final long size;
+    @Nullable
+    private MappedByteBuffer window;
+    private long windowOffset;
+    private long position;
+    private boolean opened;
+    private boolean closed;
+
+    FileUpload(@NotNull Message request, @NotNull Path path) throws IOException {
+        this.request = request;
+        try {
+            this.digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    @Nullable
+    @Override
+    public Message.Builder next() throws IOException {
+        if (closed)
+            return null;
+
+        try {
+            if (!opened) {
+                opened = true;
+                final String open = request.getString("open");
+                if (open != null)
+                    return request.toBuilder().param(Message.FUNC, open);
+            }
+
+            if (position < size) {
+                final ByteBuffer chunk = chunk();
+                digest.update(chunk.duplicate());
+                return new Message.Builder()
+                        .param("handle", request.getBytes("handle"))
+                        .param("data", chunk)
+                        .param(Message.FUNC, request.getBytes("write"));
+            }
+
+            close();
+            return confirm(request, "confirm")
+                    .param("digest", hex(digest.digest()));
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @NotNull
+    private ByteBuffer chunk() throws IOException {
+        if (window == null || position >= windowOffset + window.capacity()) {
+            windowOffset = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowOffset, Math.min(MAP_SIZE, size - windowOffset));
+        }
+        final int offset = (int) (position - windowOffset);
+        final int length = Math.min(CHUNK_SIZE, window.capacity() - offset);
+        final ByteBuffer chunk = window.duplicate();
+        chunk.position(offset).limit(offset + length);
+        position += length;
+        return chunk.slice();
+    }
+
+    private void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        window = null;
+        channel.close();
+    }
+
+    /**
+     * Final message of upload: echoes request with function taken from its parameter.
+     */
+    @NotNull
+    static Message.Builder confirm(@NotNull Message request, @NotNull String key) {
+        return new Message.Builder()
+                .param("handle", request.getBytes("handle"))
+                .param(Message.FUNC, request.getBytes(key));
+    }
+
+    @NotNull
+    private static String hex(@NotNull byte[] bytes) {
+        final char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            result[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            result[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(result);
+    }
+}
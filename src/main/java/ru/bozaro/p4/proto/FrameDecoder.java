@@ -0,0 +1,234 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental decoder of large frame body.
+ * <p>
+ * Values are kept in heap until they exceed {@link FrameLimits#getSpillThreshold()} bytes per frame, the rest
+ * are written to temporary file. File is mapped into memory after frame end and deleted on close, mapping
+ * stays valid until buffers are collected.
+ *
+ * @author Artem V. Navrotskiy
+ */
+final class FrameDecoder implements Closeable {
+
+    /**
+     * Parameter names are always kept in heap, so their length is limited.
+     */
+    private static final int MAX_NAME_LENGTH = 0x10000;
+
+    private static final int STATE_NAME = 0;
+    private static final int STATE_LENGTH = 1;
+    private static final int STATE_VALUE = 2;
+    private static final int STATE_END = 3;
+
+    @NotNull
+    private final FrameLimits limits;
+    private final int length;
+    private int consumed;
+    private int state = STATE_NAME;
+
+    @NotNull
+    private byte[] name = new byte[64];
+    private int nameLength;
+    private int valueLength;
+    private int valuePosition;
+    /**
+     * Value being read into heap or {@code null} if it is spilled.
+     */
+    @Nullable
+    private byte[] value;
+    private long inMemory;
+
+    @NotNull
+    private final List<String> names = new ArrayList<>();
+    /**
+     * Value bytes or {@link Spilled} region of {@link #spill}.
+     */
+    @NotNull
+    private final List<Object> values = new ArrayList<>();
+    @Nullable
+    private FileChannel spill;
+    private int spillSize;
+
+    FrameDecoder(@NotNull FrameLimits limits, int length) {
+        this.limits = limits;
+        this.length = length;
+    }
+
+    /**
+     * Consume frame body bytes. Bytes after frame end are left in input.
+     *
+     * @return Message or {@code null} if frame is not complete yet.
+     */
+    @Nullable
+    Message decode(@NotNull ByteBuffer input) throws IOException {
+        while (consumed < length && input.hasRemaining()) {
+            final int available = Math.min(input.remaining(), length - consumed);
+            final int start = input.position();
+            switch (state) {
+                case STATE_NAME:
+                    readName(input, available);
+                    break;
+                case STATE_LENGTH:
+                    readLength(input);
+                    break;
+                case STATE_VALUE:
+                    readValue(input, available);
+                    break;
+                default:
+                    if (input.get() != 0)
+                        throw new IOException("Can't parse parameter value");
+                    state = STATE_NAME;
+                    break;
+            }
+            consumed += input.position() - start;
+        }
+        if (consumed < length)
+            return null;
+        if (state != STATE_NAME || nameLength != 0)
+            throw new IOException("Can't parse parameter name");
+        return build();
+    }
+
+    private void readName(@NotNull ByteBuffer input, int available) throws IOException {
+        for (int i = 0; i < available; ++i) {
+            final byte b = input.get();
+            if (b == 0) {
+                names.add(ParamTable.name(name, 0, nameLength));
+                nameLength = 0;
+                state = STATE_LENGTH;
+                return;
+            }
+            if (nameLength == name.length) {
+                if (nameLength >= MAX_NAME_LENGTH)
+                    throw new IOException("Parameter name is too long");
+                name = Arrays.copyOf(name, nameLength * 2);
+            }
+            name[nameLength++] = b;
+        }
+    }
+
+    private void readLength(@NotNull ByteBuffer input) throws IOException {
+        valueLength |= (0xFF & input.get()) << (valuePosition << 3);
+        if (++valuePosition < 4)
+            return;
+
+        // Value and its terminator must fit into frame
+        if (valueLength < 0 || valueLength > length - consumed - 2)
+            throw new IOException("Unexpected end of stream");
+
+        valuePosition = 0;
+        if (inMemory + valueLength > limits.getSpillThreshold()) {
+            if (spill == null)
+                spill = openSpill();
+            value = null;
+            values.add(new Spilled(spillSize, valueLength));
+        } else {
+            value = new byte[valueLength];
+            inMemory += valueLength;
+            values.add(value);
+        }
+        state = STATE_VALUE;
+        if (valueLength == 0)
+            finishValue();
+    }
+
+    private void readValue(@NotNull ByteBuffer input, int available) throws IOException {
+        final int size = Math.min(available, valueLength - valuePosition);
+        if (value != null) {
+            input.get(value, valuePosition, size);
+        } else {
+            final ByteBuffer chunk = input.slice();
+            chunk.limit(size);
+            while (chunk.hasRemaining())
+                spill.write(chunk);
+            input.position(input.position() + size);
+            spillSize += size;
+        }
+        valuePosition += size;
+        if (valuePosition == valueLength)
+            finishValue();
+    }
+
+    private void finishValue() {
+        value = null;
+        valueLength = 0;
+        valuePosition = 0;
+        state = STATE_END;
+    }
+
+    @NotNull
+    private FileChannel openSpill() throws IOException {
+        final Path directory = limits.getSpillDirectory();
+        final Path file = directory == null
+                ? Files.createTempFile("p4-frame-", ".tmp")
+                : Files.createTempFile(directory, "p4-frame-", ".tmp");
+        try {
+            return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    @NotNull
+    private Message build() throws IOException {
+        MappedByteBuffer mapped = null;
+        if (spill != null) {
+            mapped = spill.map(FileChannel.MapMode.READ_ONLY, 0, spillSize);
+            close();
+        }
+
+        final Message.Builder builder = new Message.Builder();
+        for (int i = 0; i < names.size(); ++i) {
+            final Object item = values.get(i);
+            if (item instanceof Spilled) {
+                final Spilled region = (Spilled) item;
+                final ByteBuffer view = mapped.duplicate();
+                view.position(region.offset);
+                view.limit(region.offset + region.length);
+                builder.param(names.get(i), view);
+            } else {
+                builder.param(names.get(i), (byte[]) item);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Delete temporary file. Already mapped buffers stay valid.
+     */
+    @Override
+    public void close() throws IOException {
+        if (spill != null) {
+            final FileChannel channel = spill;
+            spill = null;
+            channel.close();
+        }
+    }
+
+    private static final class Spilled {
+        private final int offset;
+        private final int length;
+
+        private Spilled(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
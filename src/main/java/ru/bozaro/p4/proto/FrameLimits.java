@@ -0,0 +1,66 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Memory limits of received frames.
+ * <p>
+ * Frame body length is sent by server before the body, so without limits single corrupted header can allocate
+ * up to 2 GB of heap. Frames larger than {@link #getSpillThreshold()} are decoded while reading: their values
+ * are kept in heap up to threshold bytes per frame, the rest are stored in temporary file and exposed as
+ * memory-mapped buffers (see {@link Message#getBuffer(String)} and {@link Message#getChannel(String)}).
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class FrameLimits {
+
+    /**
+     * No limits: every frame is read into heap.
+     */
+    @NotNull
+    public static final FrameLimits DEFAULT = new FrameLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, null);
+
+    private final int maxFrameSize;
+    private final int spillThreshold;
+    @Nullable
+    private final Path spillDirectory;
+
+    /**
+     * @param maxFrameSize   Larger frames fail with {@link java.io.IOException} before reading their body.
+     * @param spillThreshold Heap bytes per frame for parameter values of large frames.
+     * @param spillDirectory Directory for temporary files or {@code null} for default.
+     */
+    public FrameLimits(int maxFrameSize, int spillThreshold, @Nullable Path spillDirectory) {
+        if (maxFrameSize < 0 || spillThreshold < 0)
+            throw new IllegalArgumentException("Limits must not be negative");
+
+        this.maxFrameSize = maxFrameSize;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    @Nullable
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * @param length Frame body length from header.
+     */
+    void checkFrame(int length) throws IOException {
+        if (length > maxFrameSize)
+            throw new IOException("Frame is too large: " + length + " bytes, limit is " + maxFrameSize + " bytes");
+    }
+}
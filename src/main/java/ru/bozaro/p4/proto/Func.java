@@ -0,0 +1,119 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Well-known message functions.
+ * <p>
+ * Function of received message is resolved from raw frame bytes without decoding it to string.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public enum Func {
+    /**
+     * Any function not listed here.
+     */
+    Unknown(""),
+    Protocol("protocol"),
+    Release("release"),
+    Release2("release2"),
+    Flush1("flush1"),
+    Flush2("flush2"),
+    ClientAck("client-Ack"),
+    ClientCloseFile("client-CloseFile"),
+    ClientCrypto("client-Crypto"),
+    ClientDeleteFile("client-DeleteFile"),
+    ClientEditData("client-EditData"),
+    ClientErrorPause("client-ErrorPause"),
+    ClientFstatInfo("client-FstatInfo"),
+    ClientInputData("client-InputData"),
+    ClientMessage("client-Message"),
+    ClientOpenFile("client-OpenFile"),
+    ClientOutputBinary("client-OutputBinary"),
+    ClientOutputError("client-OutputError"),
+    ClientOutputInfo("client-OutputInfo"),
+    ClientOutputText("client-OutputText"),
+    ClientPrompt("client-Prompt"),
+    ClientSendFile("client-SendFile"),
+    ClientSetPassword("client-SetPassword"),
+    ClientWriteFile("client-WriteFile");
+
+    /**
+     * Open addressing hash table by function name bytes.
+     */
+    @NotNull
+    private static final Func[] table = new Func[64];
+    @NotNull
+    private static final Map<String, Func> byName = new HashMap<>();
+
+    static {
+        for (Func func : values()) {
+            if (func == Unknown)
+                continue;
+
+            int slot = hash(func.bytes, 0, func.bytes.length) & (table.length - 1);
+            while (table[slot] != null)
+                slot = (slot + 1) & (table.length - 1);
+            table[slot] = func;
+            byName.put(func.name, func);
+        }
+    }
+
+    @NotNull
+    private final String name;
+    @NotNull
+    private final byte[] bytes;
+
+    Func(@NotNull String name) {
+        this.name = name;
+        this.bytes = name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Function name as sent in 'func' parameter.
+     */
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    @NotNull
+    public static Func of(@NotNull String name) {
+        return byName.getOrDefault(name, Unknown);
+    }
+
+    /**
+     * Resolve function by UTF-8 encoded name.
+     */
+    @NotNull
+    public static Func of(@NotNull byte[] buf, int offset, int length) {
+        int slot = hash(buf, offset, length) & (table.length - 1);
+        Func func;
+        while ((func = table[slot]) != null) {
+            if (func.matches(buf, offset, length))
+                return func;
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return Unknown;
+    }
+
+    private boolean matches(@NotNull byte[] buf, int offset, int length) {
+        if (bytes.length != length)
+            return false;
+        for (int i = 0; i < length; ++i)
+            if (bytes[i] != buf[offset + i])
+                return false;
+        return true;
+    }
+
+    private static int hash(@NotNull byte[] buf, int offset, int length) {
+        int h = length;
+        for (int i = 0; i < length; ++i)
+            h = h * 31 + buf[offset + i];
+        return h ^ (h >>> 16) ^ (h >>> 7);
+    }
+}
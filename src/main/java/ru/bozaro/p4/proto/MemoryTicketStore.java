@@ -0,0 +1,39 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ticket store kept in memory only.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class MemoryTicketStore implements TicketStore {
+
+    @NotNull
+    private final Map<String, String> tickets = new ConcurrentHashMap<>();
+
+    @NotNull
+    private static String key(@NotNull String serverAddress, @NotNull String user) {
+        return serverAddress + '=' + user;
+    }
+
+    @Nullable
+    @Override
+    public String get(@NotNull String serverAddress, @NotNull String user) {
+        return tickets.get(key(serverAddress, user));
+    }
+
+    @Override
+    public void put(@NotNull String serverAddress, @NotNull String user, @NotNull String ticket) {
+        tickets.put(key(serverAddress, user), ticket);
+    }
+
+    @Override
+    public void remove(@NotNull String serverAddress, @NotNull String user) {
+        tickets.remove(key(serverAddress, user));
+    }
+}
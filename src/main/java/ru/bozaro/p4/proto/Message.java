@@ -4,8 +4,14 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  * P4 message.
@@ -15,28 +21,115 @@ import java.util.*;
 public final class Message {
     @NotNull
     public static final String FUNC = "func";
+    /**
+     * Frame header: checksum byte followed by 32-bit little-endian body length.
+     */
+    static final int HEADER_SIZE = 5;
     @NotNull
     private static final byte[] EMPTY_BYTES = {};
 
-    @NotNull
-    private final Map<String, byte[]> params;
-    @NotNull
+    /**
+     * Parameter index entry size for frame-backed messages: name offset, name length, value offset, value length.
+     */
+    private static final int INDEX_STRIDE = 4;
+
+    /**
+     * Raw frame body of received message, {@code null} for messages created by {@link Builder}.
+     */
+    @Nullable
+    private final byte[] frame;
+    /**
+     * Parameter positions inside {@link #frame}.
+     */
+    @Nullable
+    private final int[] index;
+    private final int indexSize;
+    /**
+     * Pooled buffer of {@link #frame}, see {@link #release()}.
+     */
+    @Nullable
+    private final ByteBuffer pooledFrame;
+    @Nullable
+    private final BufferPool pool;
+    /**
+     * References to {@link #pooledFrame}: frame is returned to pool when it drops to zero.
+     */
+    @Nullable
+    private final AtomicInteger references;
+    /**
+     * Parameters of messages created by {@link Builder}.
+     */
+    @Nullable
+    private final ParamTable params;
+    /**
+     * Arguments of messages created by {@link Builder}.
+     */
+    @Nullable
     private final List<String> args;
+    /**
+     * Parameters and arguments copied from {@link #frame}, filled on first demand only. Messages are passed
+     * between threads, so both are published at once.
+     */
+    @Nullable
+    private volatile Decoded decoded;
+    /**
+     * Message has values set by {@link Builder#param(String, ByteBuffer)} or
+     * {@link Builder#param(String, FileChannel, long, long)}, sent without copying.
+     */
+    private final boolean hasBuffers;
+    /**
+     * Resolved function, computed on first demand.
+     */
+    @Nullable
+    private volatile Func funcId;
 
     public Message(@NotNull Map<String, byte[]> params, @NotNull List<String> args) {
+        final ParamTable table = new ParamTable(params.size());
+        params.forEach(table::put);
+        this.params = table.compact();
+        this.args = new ArrayList<>(args);
+        this.hasBuffers = false;
+        this.frame = null;
+        this.index = null;
+        this.indexSize = 0;
+        this.pooledFrame = null;
+        this.pool = null;
+        this.references = null;
+    }
+
+    private Message(@NotNull ParamTable params, @NotNull List<String> args) {
         this.params = params;
         this.args = args;
+        this.hasBuffers = params.hasBuffers();
+        this.frame = null;
+        this.index = null;
+        this.indexSize = 0;
+        this.pooledFrame = null;
+        this.pool = null;
+        this.references = null;
+    }
+
+    private Message(@NotNull byte[] frame, @NotNull int[] index, int indexSize, @Nullable ByteBuffer pooledFrame, @Nullable BufferPool pool) {
+        this.frame = frame;
+        this.index = index;
+        this.indexSize = indexSize;
+        this.params = null;
+        this.args = null;
+        this.hasBuffers = false;
+        this.pooledFrame = pooledFrame;
+        this.pool = pool;
+        this.references = pool == null ? null : new AtomicInteger(1);
     }
 
     @NotNull
     public Message show(@NotNull PrintStream out, @NotNull String prefix) {
         out.printf("===== MESSAGE BEGIN =====\n");
         out.printf("%s Function: %s\n", prefix, getString(FUNC));
-        for (Map.Entry<String, byte[]> entry : params.entrySet()) {
+        for (Map.Entry<String, byte[]> entry : getParams().entrySet()) {
             if (entry.getKey().equals(FUNC)) continue;
             out.printf("%s %s = %s\n", prefix, entry.getKey(), toString(entry.getValue()));
         }
-        for (String arg : args) {
+        for (String arg : args()) {
             out.printf("%s - %s\n", prefix, arg);
         }
         out.printf("===== MESSAGE END =====\n");
@@ -45,7 +138,27 @@ public final class Message {
 
     @NotNull
     public String getFunc() {
-        return toString(params.getOrDefault(Message.FUNC, EMPTY_BYTES));
+        final String func = getString(FUNC);
+        return func == null ? "" : func;
+    }
+
+    /**
+     * Function of message. Resolved without decoding function name.
+     */
+    @NotNull
+    public Func getFuncId() {
+        Func result = funcId;
+        if (result == null) {
+            if (params == null) {
+                final int i = find(FUNC);
+                result = (i >= 0) ? Func.of(frame, index[i + 2], index[i + 3]) : Func.Unknown;
+            } else {
+                final byte[] value = getBytes(FUNC);
+                result = (value != null) ? Func.of(value, 0, value.length) : Func.Unknown;
+            }
+            funcId = result;
+        }
+        return result;
     }
 
     @NotNull
@@ -56,12 +169,119 @@ public final class Message {
 
     @Nullable
     public String getString(@NotNull String key) {
-        byte[] value = params.get(key);
-        return (value != null) ? toString(value) : null;
+        if (params == null) {
+            final int i = find(key);
+            return (i >= 0) ? new String(frame, index[i + 2], index[i + 3], StandardCharsets.UTF_8) : null;
+        }
+        final int i = params.find(key);
+        return (i >= 0) ? toString(ParamTable.bytes(params.value(i))) : null;
     }
 
     public byte[] getBytes(@NotNull String key) {
-        return params.get(key);
+        if (params == null) {
+            final int i = find(key);
+            return (i >= 0) ? Arrays.copyOfRange(frame, index[i + 2], index[i + 2] + index[i + 3]) : null;
+        }
+        final int i = params.find(key);
+        return (i >= 0) ? ParamTable.bytes(params.value(i)) : null;
+    }
+
+    /**
+     * Read-only view of parameter value without copying it from received frame.
+     */
+    @Nullable
+    public ByteBuffer getBuffer(@NotNull String key) {
+        if (params == null) {
+            final int i = find(key);
+            return (i >= 0) ? ByteBuffer.wrap(frame, index[i + 2], index[i + 3]).slice().asReadOnlyBuffer() : null;
+        }
+        final int i = params.find(key);
+        return (i >= 0) ? ParamTable.buffer(params.value(i)).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Channel reading parameter value by chunks, for values too large to copy at once.
+     */
+    @Nullable
+    public ReadableByteChannel getChannel(@NotNull String key) {
+        final ByteBuffer buffer = getBuffer(key);
+        return buffer == null ? null : new BufferChannel(buffer);
+    }
+
+    /**
+     * Find index entry of named parameter in frame-backed message.
+     * <p>
+     * Last occurrence wins, same as for {@link Builder#param}.
+     */
+    private int find(@NotNull String key) {
+        if (key.isEmpty())
+            return -1;
+
+        for (int i = indexSize - INDEX_STRIDE; i >= 0; i -= INDEX_STRIDE) {
+            if (nameEquals(key, frame, index[i], index[i + 1]))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Compare string with UTF-8 encoded name without decoding it.
+     */
+    private static boolean nameEquals(@NotNull String key, @NotNull byte[] buf, int offset, int length) {
+        final int size = key.length();
+        if (size > length)
+            return false;
+
+        for (int i = 0; i < size; ++i) {
+            final char c = key.charAt(i);
+            if (c >= 0x80)
+                return key.equals(new String(buf, offset, length, StandardCharsets.UTF_8));
+            if (buf[offset + i] != c)
+                return false;
+        }
+        return size == length;
+    }
+
+    /**
+     * Keep received message usable after callback returns. Only callbacks which receive pooled messages (see
+     * {@link Client.Callback#poolFrames()}) need it, every call must be followed by {@link #release()}.
+     */
+    public void retain() {
+        if (references == null)
+            return;
+        if (references.getAndIncrement() <= 0)
+            throw new IllegalStateException("Message is already released");
+    }
+
+    /**
+     * Return frame of pooled message to pool once it is not retained. Message and its buffers (see
+     * {@link #getBuffer(String)}) must not be used after that. Does nothing for other messages.
+     */
+    public void release() {
+        if (references == null)
+            return;
+        final int count = references.decrementAndGet();
+        if (count == 0)
+            pool.release(pooledFrame);
+        else if (count < 0)
+            throw new IllegalStateException("Message is already released");
+    }
+
+    /**
+     * Message which stays valid regardless of {@link #release()}: copy of pooled message or message itself.
+     */
+    @NotNull
+    public Message detach() {
+        if (pooledFrame == null)
+            return this;
+        return new Message(Arrays.copyOf(frame, pooledFrame.limit()), index, indexSize, null, null);
+    }
+
+    /**
+     * @return {@code true} if message has values which are not copied on gathering write.
+     */
+    boolean hasBuffers() {
+        return hasBuffers;
     }
 
     @NotNull
@@ -69,20 +289,69 @@ public final class Message {
         return new String(value, StandardCharsets.UTF_8);
     }
 
+    @NotNull
+    private ParamTable params() {
+        return params != null ? params : decoded().params;
+    }
+
+    @NotNull
+    private List<String> args() {
+        return args != null ? args : decoded().args;
+    }
+
+    /**
+     * Copy parameters of frame-backed message. Concurrent callers may decode it twice, but never see partial result.
+     */
+    @NotNull
+    private Decoded decoded() {
+        Decoded result = decoded;
+        if (result == null) {
+            final Builder builder = new Builder();
+            for (int i = 0; i < indexSize; i += INDEX_STRIDE) {
+                final String name = ParamTable.name(frame, index[i], index[i + 1]);
+                builder.param(name, Arrays.copyOfRange(frame, index[i + 2], index[i + 2] + index[i + 3]));
+            }
+            result = new Decoded(builder.params.compact(), builder.args.isEmpty() ? Collections.emptyList() : builder.args);
+            decoded = result;
+        }
+        return result;
+    }
+
+    /**
+     * Visit named parameters in order without copying values. Values of received message are views of its frame.
+     */
+    void forEachParam(@NotNull BiConsumer<String, ByteBuffer> visitor) {
+        if (params == null) {
+            for (int i = 0; i < indexSize; i += INDEX_STRIDE) {
+                if (index[i + 1] > 0)
+                    visitor.accept(ParamTable.name(frame, index[i], index[i + 1]), ByteBuffer.wrap(frame, index[i + 2], index[i + 3]));
+            }
+            return;
+        }
+        for (int i = 0; i < params.size(); ++i)
+            visitor.accept(params.name(i), ParamTable.buffer(params.value(i)));
+    }
+
     @NotNull
     public Map<String, byte[]> getParams() {
-        return Collections.unmodifiableMap(params);
+        final ParamTable table = params();
+        final Map<String, byte[]> result = new LinkedHashMap<>();
+        for (int i = 0; i < table.size(); ++i)
+            result.put(table.name(i), ParamTable.bytes(table.value(i)));
+        return Collections.unmodifiableMap(result);
     }
 
     @NotNull
     public List<String> getArgs() {
-        return Collections.unmodifiableList(args);
+        return Collections.unmodifiableList(args());
     }
 
     public Builder toBuilder() {
         final Builder builder = new Builder();
-        builder.params.putAll(params);
-        builder.args.addAll(args);
+        final ParamTable table = params();
+        for (int i = 0; i < table.size(); ++i)
+            builder.params.put(table.name(i), table.value(i));
+        builder.args.addAll(args());
         return builder;
     }
 
@@ -91,7 +360,7 @@ public final class Message {
          * We want to preserve order of this for human-friendliness of stuff like 'p4 info'.
          */
         @NotNull
-        private final Map<String, byte[]> params = new LinkedHashMap<>();
+        private final ParamTable params = new ParamTable(8);
         @NotNull
         private final List<String> args = new ArrayList<>();
 
@@ -122,6 +391,39 @@ public final class Message {
             return this;
         }
 
+        /**
+         * Parameter value from buffer remaining bytes. Value is not copied: on gathering write it is sent
+         * directly from buffer, so buffer content must not change until message is sent.
+         */
+        @NotNull
+        public Builder param(@NotNull String name, @Nullable ByteBuffer value) {
+            if (value != null) {
+                if (name.isEmpty()) {
+                    final byte[] bytes = new byte[value.remaining()];
+                    value.duplicate().get(bytes);
+                    args.add(new String(bytes, StandardCharsets.UTF_8));
+                } else {
+                    params.put(name, value.slice());
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Parameter value from file region. Value is not copied: it is sent by {@link FileChannel#transferTo},
+         * so channel must stay open and region content must not change until message is sent.
+         */
+        @NotNull
+        public Builder param(@NotNull String name, @NotNull FileChannel channel, long position, long length) {
+            if (name.isEmpty())
+                throw new IllegalArgumentException("File region can't be used as argument");
+            if (position < 0 || length < 0 || length > Integer.MAX_VALUE - PARAM_OVERHEAD)
+                throw new IllegalArgumentException("Invalid file region: " + position + "+" + length);
+
+            params.put(name, new FileRegion(channel, position, (int) length));
+            return this;
+        }
+
         @NotNull
         public Builder arg(@Nullable String value) {
             if (value != null) {
@@ -135,60 +437,302 @@ public final class Message {
         @NotNull
         public Builder clone() {
             final Builder cloned = new Builder();
-            cloned.params.putAll(params);
+            for (int i = 0; i < params.size(); ++i)
+                cloned.params.put(params.name(i), params.value(i));
             cloned.args.addAll(args);
             return cloned;
         }
 
         @NotNull
         public Message build() {
-            return new Message(params, args);
+            return new Message(params.compact(), args.isEmpty() ? Collections.emptyList() : new ArrayList<>(args));
         }
     }
 
-    private void serializeParam(@NotNull ByteArrayOutputStream writer, @NotNull String name, @NotNull byte[] value) throws IOException {
-        writer.write(name.getBytes(StandardCharsets.UTF_8));
-        writer.write(0);
+    /**
+     * Size of encoded parameter excluding name and value: name terminator, value length and value terminator.
+     */
+    private static final int PARAM_OVERHEAD = 1 + 4 + 1;
+
+    /**
+     * @return Full encoded frame size, including header.
+     */
+    int frameSize() throws IOException {
+        final ParamTable params = params();
+        if (params.find(FUNC) < 0)
+            throw new IllegalArgumentException("Function name is not defined");
+
+        long size = HEADER_SIZE;
+        for (int i = 0; i < params.size(); ++i)
+            size += Utf8.length(params.name(i)) + ParamTable.length(params.value(i)) + PARAM_OVERHEAD;
 
-        write32(writer, value.length);
-        writer.write(value);
+        for (String arg : args())
+            size += Utf8.length(arg) + PARAM_OVERHEAD;
 
-        writer.write(0);
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Message is too large: " + size + " bytes");
+        return (int) size;
     }
 
-    public byte[] serialize() throws IOException {
-        ByteArrayOutputStream writer = new ByteArrayOutputStream(1024);
-        writer.write(0);
-        write32(writer, 0);
+    /**
+     * Encode frame into buffer. Buffer must have at least {@link #frameSize()} bytes after offset.
+     *
+     * @return Position after encoded frame.
+     */
+    int serialize(@NotNull byte[] buf, int offset) {
+        return serialize(buf, offset, EMPTY_BYTES);
+    }
 
-        for (Map.Entry<String, byte[]> entry : params.entrySet())
-            if (!FUNC.equals(entry.getKey()))
-                serializeParam(writer, entry.getKey(), entry.getValue());
+    /**
+     * Encode frame into buffer, inserting pre-encoded parameters (see {@link #serializeParams()}) before own ones.
+     * Buffer must have at least {@code prefix.length + frameSize()} bytes after offset.
+     *
+     * @return Position after encoded frame.
+     */
+    int serialize(@NotNull byte[] buf, int offset, @NotNull byte[] prefix) {
+        return encode(buf, offset, prefix, null);
+    }
 
-        for (String arg : args)
-            serializeParam(writer, "", arg.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Encode frame as buffer sequence for gathering write. Values set by {@link Builder#param(String, ByteBuffer)}
+     * are not copied, file regions are mapped into memory.
+     */
+    @NotNull
+    ByteBuffer[] toBuffers(@NotNull byte[] prefix) throws IOException {
+        final Object[] segments = toSegments(prefix);
+        final ByteBuffer[] result = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; ++i) {
+            final Object segment = segments[i];
+            result[i] = segment instanceof FileRegion ? ((FileRegion) segment).map() : (ByteBuffer) segment;
+        }
+        return result;
+    }
+
+    /**
+     * Encode frame as sequence of {@link ByteBuffer} and {@link FileRegion} segments. Values set by
+     * {@link Builder#param(String, ByteBuffer)} and {@link Builder#param(String, FileChannel, long, long)}
+     * are not copied.
+     */
+    @NotNull
+    Object[] toSegments(@NotNull byte[] prefix) throws IOException {
+        final long frameSize = (long) prefix.length + frameSize();
+        if (frameSize > Integer.MAX_VALUE)
+            throw new IOException("Message is too large: " + frameSize + " bytes");
+
+        if (!hasBuffers) {
+            final byte[] buf = new byte[(int) frameSize];
+            serialize(buf, 0, prefix);
+            return new Object[]{ByteBuffer.wrap(buf)};
+        }
+
+        final ParamTable params = params();
+        long external = 0;
+        for (int i = 0; i < params.size(); ++i) {
+            final Object value = params.value(i);
+            if (!(value instanceof byte[]))
+                external += ParamTable.length(value);
+        }
+
+        final Cuts cuts = new Cuts();
+        final byte[] buf = new byte[(int) (frameSize - external)];
+        encode(buf, 0, prefix, cuts);
+
+        final Object[] result = new Object[cuts.size * 2 + 1];
+        int position = 0;
+        for (int i = 0; i < cuts.size; ++i) {
+            final Object value = cuts.values[i];
+            result[i * 2] = ByteBuffer.wrap(buf, position, cuts.positions[i] - position);
+            result[i * 2 + 1] = value instanceof ByteBuffer ? ((ByteBuffer) value).duplicate() : value;
+            position = cuts.positions[i];
+        }
+        result[cuts.size * 2] = ByteBuffer.wrap(buf, position, buf.length - position);
+        return result;
+    }
 
-        final byte[] func = params.get(FUNC);
-        if (func == null)
+    /**
+     * @param cuts If not {@code null}, external values are not copied, but their positions are collected.
+     */
+    private int encode(@NotNull byte[] buf, int offset, @NotNull byte[] prefix, @Nullable Cuts cuts) {
+        System.arraycopy(prefix, 0, buf, offset + HEADER_SIZE, prefix.length);
+        int p = serializeBody(buf, offset + HEADER_SIZE + prefix.length, cuts);
+
+        final ParamTable params = params();
+        final int func = params.find(FUNC);
+        if (func < 0)
             throw new IllegalArgumentException("Function name is not defined");
-        serializeParam(writer, FUNC, func);
+        p = serializeParam(buf, p, FUNC, params.value(func), cuts);
 
-        byte[] buffer = writer.toByteArray();
-        int length = buffer.length - 5;
-        byte checksum = 0;
-        for (int i = 0; i < 4; i++) {
-            buffer[i + 1] = (byte) (length & 0xFF);
-            checksum ^= (byte) (length & 0xFF);
-            length >>= 8;
+        final int length = p - offset - HEADER_SIZE + (cuts == null ? 0 : cuts.length);
+        write32(buf, offset + 1, length);
+        buf[offset] = (byte) (buf[offset + 1] ^ buf[offset + 2] ^ buf[offset + 3] ^ buf[offset + 4]);
+        return p;
+    }
+
+    /**
+     * Decoded content of received message.
+     */
+    private static final class Decoded {
+        @NotNull
+        private final ParamTable params;
+        @NotNull
+        private final List<String> args;
+
+        private Decoded(@NotNull ParamTable params, @NotNull List<String> args) {
+            this.params = params;
+            this.args = args;
+        }
+    }
+
+    /**
+     * Channel over remaining bytes of buffer.
+     */
+    private static final class BufferChannel implements ReadableByteChannel {
+        @NotNull
+        private final ByteBuffer buffer;
+        private boolean open = true;
+
+        private BufferChannel(@NotNull ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(@NotNull ByteBuffer dst) throws IOException {
+            if (!open)
+                throw new ClosedChannelException();
+            if (!buffer.hasRemaining())
+                return -1;
+
+            final int size = Math.min(buffer.remaining(), dst.remaining());
+            final ByteBuffer chunk = buffer.slice();
+            chunk.limit(size);
+            dst.put(chunk);
+            buffer.position(buffer.position() + size);
+            return size;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+
+    /**
+     * Positions of not copied values in encoded frame.
+     */
+    private static final class Cuts {
+        @NotNull
+        private int[] positions = new int[2];
+        /**
+         * {@link ByteBuffer} or {@link FileRegion} values.
+         */
+        @NotNull
+        private Object[] values = new Object[2];
+        private int size;
+        private int length;
+
+        private void add(int position, @NotNull Object value) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            positions[size] = position;
+            values[size] = value;
+            size++;
+            length += ParamTable.length(value);
+        }
+    }
+
+    /**
+     * Encode parameters and arguments without frame header and function name.
+     * <p>
+     * Result can be reused as prefix of frames sharing the same parameters.
+     */
+    @NotNull
+    byte[] serializeParams() {
+        final ParamTable params = params();
+        long size = 0;
+        for (int i = 0; i < params.size(); ++i) {
+            if (!FUNC.equals(params.name(i)))
+                size += Utf8.length(params.name(i)) + ParamTable.length(params.value(i)) + PARAM_OVERHEAD;
         }
-        buffer[0] = checksum;
+        for (String arg : args())
+            size += Utf8.length(arg) + PARAM_OVERHEAD;
+
+        final byte[] buf = new byte[(int) size];
+        serializeBody(buf, 0, null);
+        return buf;
+    }
+
+    private int serializeBody(@NotNull byte[] buf, int offset, @Nullable Cuts cuts) {
+        final ParamTable params = params();
+        int p = offset;
+        for (int i = 0; i < params.size(); ++i)
+            if (!FUNC.equals(params.name(i)))
+                p = serializeParam(buf, p, params.name(i), params.value(i), cuts);
+
+        for (String arg : args()) {
+            buf[p++] = 0;
+            final int valueOffset = p + 4;
+            final int valueEnd = Utf8.encode(arg, buf, valueOffset);
+            write32(buf, p, valueEnd - valueOffset);
+            buf[valueEnd] = 0;
+            p = valueEnd + 1;
+        }
+        return p;
+    }
+
+    private static int serializeParam(@NotNull byte[] buf, int offset, @NotNull String name, @NotNull Object value, @Nullable Cuts cuts) {
+        int p = Utf8.encode(name, buf, offset);
+        buf[p++] = 0;
+
+        if (value instanceof ByteBuffer) {
+            final ByteBuffer buffer = (ByteBuffer) value;
+            write32(buf, p, buffer.remaining());
+            p += 4;
+            if (cuts != null) {
+                cuts.add(p, buffer);
+            } else {
+                final int length = buffer.remaining();
+                buffer.duplicate().get(buf, p, length);
+                p += length;
+            }
+        } else if (value instanceof FileRegion) {
+            final FileRegion region = (FileRegion) value;
+            write32(buf, p, region.length());
+            p += 4;
+            if (cuts != null) {
+                cuts.add(p, region);
+            } else {
+                region.read(buf, p);
+                p += region.length();
+            }
+        } else {
+            final byte[] bytes = (byte[]) value;
+            write32(buf, p, bytes.length);
+            p += 4;
+            System.arraycopy(bytes, 0, buf, p, bytes.length);
+            p += bytes.length;
+        }
+
+        buf[p++] = 0;
+        return p;
+    }
+
+    public byte[] serialize() throws IOException {
+        final byte[] buffer = new byte[frameSize()];
+        serialize(buffer, 0);
         return buffer;
     }
 
-    private void write32(@NotNull OutputStream stream, int value) throws IOException {
+    private static void write32(@NotNull byte[] buf, int offset, int value) {
         int v = value;
         for (int i = 0; i < 4; i++) {
-            stream.write(v & 0xFF);
+            buf[offset + i] = (byte) (v & 0xFF);
             v >>= 8;
         }
     }
@@ -199,63 +743,129 @@ public final class Message {
 
     @NotNull
     public static Message recv(InputStream stream) throws IOException {
-        final Builder builder = new Builder();
-        int checksum = stream.read();
-        int length = read32(stream);
+        return recv(stream, FrameLimits.DEFAULT);
+    }
+
+    /**
+     * Read single frame. Stream is not read beyond frame end.
+     */
+    @NotNull
+    public static Message recv(@NotNull InputStream stream, @NotNull FrameLimits limits) throws IOException {
+        final byte[] header = new byte[HEADER_SIZE];
+        readFully(stream, header, 0, header.length);
+
+        final int length = frameLength(header, 0);
+        limits.checkFrame(length);
+        if (length <= limits.getSpillThreshold()) {
+            final byte[] buf = new byte[length];
+            readFully(stream, buf, 0, buf.length);
+            return parse(buf, 0, buf.length);
+        }
+
+        try (FrameDecoder decoder = new FrameDecoder(limits, length)) {
+            final byte[] chunk = new byte[Math.min(length, 0x10000)];
+            for (int received = 0; ; ) {
+                final int size = stream.read(chunk, 0, Math.min(chunk.length, length - received));
+                if (size < 0) throw new IOException("Unexpected end of stream");
+                received += size;
+
+                final Message message = decoder.decode(ByteBuffer.wrap(chunk, 0, size));
+                if (message != null)
+                    return message;
+            }
+        }
+    }
+
+    /**
+     * Decode frame header.
+     *
+     * @return Frame body length.
+     */
+    static int frameLength(@NotNull byte[] header, int offset) throws IOException {
+        int checksum = 0xFF & header[offset];
+        int length = 0;
         for (int i = 0; i < 4; ++i) {
-            checksum ^= 0xFF & (length >> (i << 3));
+            final int b = 0xFF & header[offset + i + 1];
+            checksum ^= b;
+            length |= b << (i << 3);
         }
         if (checksum != 0) throw new IOException("Checksum mismatch");
+        if (length < 0) throw new IOException("Invalid frame length: " + (length & 0xFFFFFFFFL));
+        return length;
+    }
 
-        byte[] buf = new byte[length];
-        for (int position = 0; position < buf.length; ) {
-            int size = stream.read(buf, position, length - position);
-            if (size < 0) throw new IOException("Unexpected end of stream");
-            position += size;
-        }
+    /**
+     * Decode frame body.
+     * <p>
+     * Parameter values are not copied: returned message keeps reference to {@code buf}.
+     */
+    @NotNull
+    static Message parse(@NotNull byte[] buf, int offset, int length) throws IOException {
+        return parse(buf, offset, length, null, null);
+    }
+
+    /**
+     * Parse frame body from pooled heap buffer. Message owns buffer, see {@link #release()}.
+     */
+    @NotNull
+    static Message parse(@NotNull ByteBuffer pooledFrame, int length, @NotNull BufferPool pool) throws IOException {
+        pooledFrame.limit(length);
+        return parse(pooledFrame.array(), 0, length, pooledFrame, pool);
+    }
 
-        for (int position = 0; position < buf.length; ) {
-            int end = indexOf(buf, position, (byte) 0);
+    @NotNull
+    private static Message parse(@NotNull byte[] buf, int offset, int length, @Nullable ByteBuffer pooledFrame, @Nullable BufferPool pool) throws IOException {
+        int[] index = new int[INDEX_STRIDE * 8];
+        int indexSize = 0;
+        final int limit = offset + length;
+        for (int position = offset; position < limit; ) {
+            int end = indexOf(buf, position, limit, (byte) 0);
             if (end < 0)
                 throw new IOException("Can't parse parameter name");
-            String name = new String(buf, position, end - position, StandardCharsets.UTF_8);
+            final int nameOffset = position;
+            final int nameLength = end - position;
             position = end + 1;
 
-            int len = read32(buf, position);
+            int len = read32(buf, position, limit);
             position += 4;
 
-            if (len + position + 1 > buf.length)
+            if (len < 0 || len > limit - position - 1)
                 throw new IOException("Unexpected end of stream");
-            byte[] value = Arrays.copyOfRange(buf, position, position + len);
+            final int valueOffset = position;
             position += len;
 
             if (buf[position] != 0)
                 throw new IOException("Can't parse parameter value");
             position++;
-            builder.param(name, value);
+
+            if (indexSize == index.length)
+                index = Arrays.copyOf(index, index.length * 2);
+            index[indexSize] = nameOffset;
+            index[indexSize + 1] = nameLength;
+            index[indexSize + 2] = valueOffset;
+            index[indexSize + 3] = len;
+            indexSize += INDEX_STRIDE;
         }
-        return builder.build();
+        return new Message(buf, index, indexSize, pooledFrame, pool);
     }
 
-    private static int indexOf(byte[] buf, int startPosition, byte b) {
-        for (int i = startPosition; i < buf.length; ++i) {
-            if (buf[i] == b) return i;
+    private static void readFully(@NotNull InputStream stream, @NotNull byte[] buf, int offset, int length) throws IOException {
+        for (int position = 0; position < length; ) {
+            int size = stream.read(buf, offset + position, length - position);
+            if (size < 0) throw new IOException("Unexpected end of stream");
+            position += size;
         }
-        return -1;
     }
 
-    private static int read32(InputStream stream) throws IOException {
-        int result = 0;
-        for (int i = 0; i < 4; ++i) {
-            int b = stream.read();
-            if (b < 0) throw new IOException("Unexpected end of stream");
-            result |= (0xFF & b) << (i << 3);
+    private static int indexOf(byte[] buf, int startPosition, int limit, byte b) {
+        for (int i = startPosition; i < limit; ++i) {
+            if (buf[i] == b) return i;
         }
-        return result;
+        return -1;
     }
 
-    private static int read32(byte[] buf, int offset) throws IOException {
-        if (offset < 0 || offset > buf.length + 4) throw new IOException("Unexpected end of stream");
+    private static int read32(byte[] buf, int offset, int limit) throws IOException {
+        if (offset < 0 || offset + 4 > limit) throw new IOException("Unexpected end of stream");
         int result = 0;
         for (int i = 0; i < 4; ++i) {
             result |= (0xFF & (int) (buf[i + offset])) << (i << 3);
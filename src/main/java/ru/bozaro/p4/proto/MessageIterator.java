@@ -0,0 +1,148 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Blocking iterator over command output.
+ * <p>
+ * At most {@link #BATCH_SIZE} messages are buffered: connection is not read until consumer takes them.
+ * Closing iterator before end of output cancels delivery, rest of output is drained in background.
+ * Must not be consumed on {@link EventLoop} thread.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class MessageIterator implements Iterator<Message>, AutoCloseable {
+
+    private static final int BATCH_SIZE = 32;
+
+    @NotNull
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    @Nullable
+    private Subscription subscription;
+    /**
+     * Messages taken from queue since last request.
+     */
+    private int consumed;
+    private boolean done;
+    private boolean closed;
+    @Nullable
+    private Throwable error;
+
+    MessageIterator(@NotNull Publisher<Message> publisher) {
+        publisher.subscribe(new Subscriber<Message>() {
+            @Override
+            public void onSubscribe(@NotNull Subscription s) {
+                synchronized (MessageIterator.this) {
+                    subscription = s;
+                }
+                s.request(BATCH_SIZE);
+            }
+
+            @Override
+            public void onNext(@NotNull Message message) {
+                synchronized (MessageIterator.this) {
+                    if (closed)
+                        return;
+                    queue.add(message);
+                    MessageIterator.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void onError(@NotNull Throwable e) {
+                synchronized (MessageIterator.this) {
+                    error = e;
+                    done = true;
+                    MessageIterator.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                synchronized (MessageIterator.this) {
+                    done = true;
+                    MessageIterator.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for next message.
+     *
+     * @throws UncheckedIOException On connection error or if command completes with errors.
+     */
+    @Override
+    public synchronized boolean hasNext() {
+        try {
+            while (queue.isEmpty() && !done && !closed)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while waiting for message"));
+        }
+        if (!queue.isEmpty())
+            return true;
+        if (error != null && !closed) {
+            final Throwable e = error;
+            error = null;
+            if (e instanceof IOException)
+                throw new UncheckedIOException((IOException) e);
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            if (e instanceof Error)
+                throw (Error) e;
+            throw new UncheckedIOException(new IOException(e));
+        }
+        return false;
+    }
+
+    @NotNull
+    @Override
+    public Message next() {
+        final Message message;
+        final Subscription s;
+        synchronized (this) {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            message = queue.poll();
+            if (++consumed < BATCH_SIZE / 2)
+                return message;
+            consumed = 0;
+            s = subscription;
+        }
+        // Request outside of lock: publisher may deliver synchronously
+        if (s != null)
+            s.request(BATCH_SIZE / 2);
+        return message;
+    }
+
+    /**
+     * Stop consuming output. Remaining output is skipped by connection.
+     */
+    @Override
+    public void close() {
+        final Subscription s;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            queue.clear();
+            notifyAll();
+            s = done ? null : subscription;
+        }
+        if (s != null)
+            s.cancel();
+    }
+}
@@ -0,0 +1,182 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import javax.xml.ws.Holder;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Publisher of command output messages with backpressure.
+ * <p>
+ * Command is queued on subscription. While subscriber has no demand, blocking connections wait inside callback
+ * and event loop connections stop reading from socket.
+ *
+ * @author Artem V. Navrotskiy
+ */
+final class MessagePublisher implements Publisher<Message>, Subscription, Client.Callback {
+
+    /**
+     * Undelivered message count after which event loop connection stops reading.
+     */
+    private static final int HIGH_WATER_MARK = 64;
+
+    @NotNull
+    private final Client client;
+    @NotNull
+    private final Transport transport;
+    @NotNull
+    private final String func;
+    @NotNull
+    private final String[] args;
+    @NotNull
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    @Nullable
+    private Subscriber<? super Message> subscriber;
+    private long demand;
+    private boolean cancelled;
+    private boolean done;
+    @Nullable
+    private Throwable error;
+    private boolean draining;
+    private boolean paused;
+
+    MessagePublisher(@NotNull Client client, @NotNull Transport transport, @NotNull String func, @NotNull String... args) {
+        this.client = client;
+        this.transport = transport;
+        this.func = func;
+        this.args = args;
+    }
+
+    @Override
+    public void subscribe(@NotNull Subscriber<? super Message> s) {
+        synchronized (this) {
+            if (subscriber != null) {
+                s.onSubscribe(this);
+                s.onError(new IllegalStateException("Publisher allows only one subscriber"));
+                return;
+            }
+            subscriber = s;
+        }
+        s.onSubscribe(this);
+        client.p4Async(this, func, args).whenComplete((ok, e) -> {
+            synchronized (this) {
+                if (!done) {
+                    done = true;
+                    if (e != null)
+                        error = e;
+                    else if (!ok)
+                        error = new IOException("Command failed: " + func);
+                }
+            }
+            drain();
+        });
+    }
+
+    @Override
+    public void request(long n) {
+        synchronized (this) {
+            if (n <= 0) {
+                queue.clear();
+                done = true;
+                error = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            cancelled = true;
+            queue.clear();
+        }
+        notifyDelivered();
+    }
+
+    @Override
+    public Message.Builder exec(@NotNull Message message, Holder<ErrorSeverity> severityHolder) throws InterruptedException {
+        synchronized (this) {
+            if (cancelled)
+                return null;
+            queue.add(message);
+        }
+        drain();
+
+        if (transport.isBlocking()) {
+            // Connection has dedicated thread: just wait for subscriber
+            synchronized (this) {
+                while (!queue.isEmpty() && !cancelled)
+                    wait();
+            }
+        } else {
+            synchronized (this) {
+                if (queue.size() < HIGH_WATER_MARK || paused)
+                    return null;
+                paused = true;
+            }
+            transport.pause();
+        }
+        return null;
+    }
+
+    /**
+     * Deliver queued messages and completion signal. Only one thread delivers at a time.
+     */
+    private void drain() {
+        final Subscriber<? super Message> s;
+        synchronized (this) {
+            if (draining || subscriber == null)
+                return;
+            draining = true;
+            s = subscriber;
+        }
+        while (true) {
+            Message next = null;
+            boolean terminate = false;
+            Throwable terminalError = null;
+            synchronized (this) {
+                if (!cancelled && demand > 0 && !queue.isEmpty()) {
+                    next = queue.poll();
+                    demand--;
+                } else {
+                    if (!cancelled && done && queue.isEmpty()) {
+                        cancelled = true;
+                        terminate = true;
+                        terminalError = error;
+                    }
+                    draining = false;
+                }
+            }
+            if (next == null) {
+                notifyDelivered();
+                if (terminate) {
+                    if (terminalError != null)
+                        s.onError(terminalError);
+                    else
+                        s.onComplete();
+                }
+                return;
+            }
+            s.onNext(next);
+        }
+    }
+
+    private void notifyDelivered() {
+        final boolean resume;
+        synchronized (this) {
+            notifyAll();
+            resume = paused && (cancelled || queue.size() < HIGH_WATER_MARK / 2);
+            if (resume)
+                paused = false;
+        }
+        if (resume)
+            transport.resume();
+    }
+}
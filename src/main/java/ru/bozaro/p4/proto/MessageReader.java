@@ -0,0 +1,149 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffered P4 message reader.
+ * <p>
+ * Reads frame header and body in bulk into reusable buffer, so several small back-to-back frames
+ * are usually decoded from a single read call. Frames larger than {@link FrameLimits#getSpillThreshold()} are
+ * decoded while reading.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class MessageReader {
+
+    static final int DEFAULT_BUFFER_SIZE = 0x10000;
+
+    @NotNull
+    private final InputStream stream;
+    @NotNull
+    private final byte[] buffer;
+    @NotNull
+    private final FrameLimits limits;
+    /**
+     * Start of unparsed data in buffer.
+     */
+    private int position;
+    /**
+     * End of received data in buffer.
+     */
+    private int limit;
+
+    public MessageReader(@NotNull InputStream stream) {
+        this(stream, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MessageReader(@NotNull InputStream stream, int bufferSize) {
+        this(stream, bufferSize, FrameLimits.DEFAULT);
+    }
+
+    public MessageReader(@NotNull InputStream stream, int bufferSize, @NotNull FrameLimits limits) {
+        this(stream, new byte[bufferSize], limits);
+    }
+
+    /**
+     * @param buffer Read buffer, owned by reader until it is no longer used.
+     */
+    MessageReader(@NotNull InputStream stream, @NotNull byte[] buffer, @NotNull FrameLimits limits) {
+        if (buffer.length < Message.HEADER_SIZE)
+            throw new IllegalArgumentException("Buffer size is too small: " + buffer.length);
+
+        this.stream = stream;
+        this.buffer = buffer;
+        this.limits = limits;
+    }
+
+    @NotNull
+    public Message recv() throws IOException {
+        return recv(null);
+    }
+
+    /**
+     * @param pool Pool of frame bodies or {@code null} to allocate them. Pooled message must be released, see
+     *             {@link Message#release()}.
+     */
+    @NotNull
+    Message recv(@Nullable BufferPool pool) throws IOException {
+        fill(Message.HEADER_SIZE);
+        final int length = Message.frameLength(buffer, position);
+        limits.checkFrame(length);
+        position += Message.HEADER_SIZE;
+
+        if (length > limits.getSpillThreshold())
+            return recvLarge(length);
+
+        // Message keeps reference to frame body, so it must not share reusable buffer
+        final ByteBuffer pooled = pool == null ? null : pool.acquireFrame(length);
+        try {
+            final byte[] frame = pooled == null ? new byte[length] : pooled.array();
+            if (length <= buffer.length) {
+                fill(length);
+                System.arraycopy(buffer, position, frame, 0, length);
+                position += length;
+            } else {
+                // Frame doesn't fit into buffer: take buffered part and read the rest directly
+                final int buffered = limit - position;
+                System.arraycopy(buffer, position, frame, 0, buffered);
+                position = limit;
+                for (int offset = buffered; offset < length; ) {
+                    final int size = stream.read(frame, offset, length - offset);
+                    if (size < 0) throw new IOException("Unexpected end of stream");
+                    offset += size;
+                }
+            }
+            return pooled == null ? Message.parse(frame, 0, length) : Message.parse(pooled, length, pool);
+        } catch (IOException | RuntimeException e) {
+            if (pooled != null)
+                pool.release(pooled);
+            throw e;
+        }
+    }
+
+    @NotNull
+    private Message recvLarge(int length) throws IOException {
+        try (FrameDecoder decoder = new FrameDecoder(limits, length)) {
+            while (true) {
+                if (position == limit) {
+                    position = 0;
+                    limit = stream.read(buffer, 0, buffer.length);
+                    if (limit < 0) {
+                        limit = 0;
+                        throw new IOException("Unexpected end of stream");
+                    }
+                }
+
+                final ByteBuffer input = ByteBuffer.wrap(buffer, position, limit - position);
+                final Message message = decoder.decode(input);
+                position = input.position();
+                if (message != null)
+                    return message;
+            }
+        }
+    }
+
+    /**
+     * Ensure that buffer contains at least {@code size} unparsed bytes.
+     */
+    private void fill(int size) throws IOException {
+        if (limit - position >= size)
+            return;
+
+        if (buffer.length - position < size) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+
+        while (limit - position < size) {
+            final int read = stream.read(buffer, limit, buffer.length - limit);
+            if (read < 0) throw new IOException("Unexpected end of stream");
+            limit += read;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * P4 message writer.
+ * <p>
+ * Encodes every frame into reusable buffer and sends it with single write call. Messages with buffer values
+ * (see {@link Message.Builder#param(String, java.nio.ByteBuffer)}) are sent by gathering write without copying
+ * the values, file region values are sent by {@link java.nio.channels.FileChannel#transferTo}.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class MessageWriter {
+
+    @NotNull
+    private static final byte[] EMPTY_BYTES = {};
+    static final int DEFAULT_BUFFER_SIZE = 0x2000;
+    /**
+     * Frames larger than this are encoded into temporary buffer, so single huge frame doesn't pin memory.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 0x100000;
+
+    @NotNull
+    private final OutputStream stream;
+    /**
+     * Channel of the same connection for gathering writes, if any.
+     */
+    @Nullable
+    private final GatheringByteChannel channel;
+    @NotNull
+    private byte[] buffer;
+    @Nullable
+    private WritableByteChannel streamChannel;
+    /**
+     * Pool of temporary buffers for frames larger than {@link #buffer}, writer waits while its budget is exhausted.
+     * Without pool buffer grows instead.
+     */
+    @Nullable
+    private final BufferPool pool;
+
+    public MessageWriter(@NotNull OutputStream stream) {
+        this(stream, DEFAULT_BUFFER_SIZE);
+    }
+
+    public MessageWriter(@NotNull OutputStream stream, int bufferSize) {
+        this(stream, null, bufferSize);
+    }
+
+    /**
+     * @param channel Channel of the same connection, for example {@link java.net.Socket#getChannel()}. Buffer values
+     *                are written to it without copying, while plain stream copies them through temporary array.
+     */
+    public MessageWriter(@NotNull OutputStream stream, @Nullable GatheringByteChannel channel) {
+        this(stream, channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    MessageWriter(@NotNull OutputStream stream, @Nullable GatheringByteChannel channel, int bufferSize) {
+        this(stream, channel, new byte[bufferSize], null);
+    }
+
+    MessageWriter(@NotNull OutputStream stream, @Nullable GatheringByteChannel channel, @NotNull byte[] buffer, @Nullable BufferPool pool) {
+        this.stream = stream;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    public void send(@NotNull Message message) throws IOException {
+        send(message, EMPTY_BYTES);
+    }
+
+    /**
+     * Send message with pre-encoded parameters inserted before its own ones.
+     */
+    void send(@NotNull Message message, @NotNull byte[] prefix) throws IOException {
+        if (message.hasBuffers()) {
+            sendSegments(message.toSegments(prefix));
+            return;
+        }
+
+        final long frameSize = (long) prefix.length + message.frameSize();
+        if (frameSize > Integer.MAX_VALUE)
+            throw new IOException("Message is too large: " + frameSize + " bytes");
+
+        final int size = (int) frameSize;
+        if (size > buffer.length && pool != null) {
+            // Waits for budget: connection read/write buffers are not counted, so it is released by other frames
+            final ByteBuffer pooled = pool.acquireFrame(size);
+            try {
+                final int end = message.serialize(pooled.array(), 0, prefix);
+                stream.write(pooled.array(), 0, end);
+            } finally {
+                pool.release(pooled);
+            }
+            return;
+        }
+
+        byte[] buf = buffer;
+        if (size > buf.length) {
+            buf = new byte[size];
+            if (size <= MAX_RETAINED_BUFFER_SIZE)
+                buffer = buf;
+        }
+
+        final int end = message.serialize(buf, 0, prefix);
+        stream.write(buf, 0, end);
+    }
+
+    /**
+     * Send buffers by gathering writes and file regions by {@link FileRegion#transferTo}.
+     */
+    private void sendSegments(@NotNull Object[] segments) throws IOException {
+        int start = 0;
+        for (int i = 0; i <= segments.length; ++i) {
+            if (i < segments.length && segments[i] instanceof ByteBuffer)
+                continue;
+
+            if (i > start) {
+                final ByteBuffer[] buffers = new ByteBuffer[i - start];
+                System.arraycopy(segments, start, buffers, 0, buffers.length);
+                sendBuffers(buffers);
+            }
+            if (i < segments.length)
+                ((FileRegion) segments[i]).transferTo(channel != null ? channel : streamChannel());
+            start = i + 1;
+        }
+    }
+
+    @NotNull
+    private WritableByteChannel streamChannel() {
+        if (streamChannel == null)
+            streamChannel = Channels.newChannel(stream);
+        return streamChannel;
+    }
+
+    private void sendBuffers(@NotNull ByteBuffer[] buffers) throws IOException {
+        if (channel != null) {
+            for (ByteBuffer last = buffers[buffers.length - 1]; last.hasRemaining(); )
+                channel.write(buffers);
+            return;
+        }
+
+        // Plain socket: only heap segments can be written without copying
+        for (ByteBuffer buf : buffers) {
+            if (buf.hasArray()) {
+                stream.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            } else {
+                final WritableByteChannel target = streamChannel();
+                while (buf.hasRemaining())
+                    target.write(buf);
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Message parameters in insertion order: parallel arrays of names and values.
+ * <p>
+ * Value is {@code byte[]}, {@link ByteBuffer} or {@link FileRegion}, last two are sent without copying. Names decoded from frames are shared
+ * instances for well-known parameters, so lookup by same constant usually succeeds by reference comparison.
+ *
+ * @author Artem V. Navrotskiy
+ */
+final class ParamTable {
+
+    /**
+     * Tables up to this size are searched linearly.
+     */
+    private static final int LINEAR_LIMIT = 16;
+
+    @NotNull
+    private static final String[] WELL_KNOWN = {
+            Message.FUNC, "fmt0", "fmt1", "fmt2", "fmt3", "code0", "code1", "code2", "code3",
+            "data", "handle", "confirm", "decline", "path", "clientFile", "depotFile", "movedFile",
+            "rev", "haveRev", "headRev", "headAction", "headType", "headTime", "headChange", "headModTime",
+            "action", "change", "type", "time", "user", "client", "desc", "status", "digest", "fileSize",
+            "isMapped", "perms", "modTime", "workRev", "otherOpen", "ourLock", "unicode", "server2", "token",
+    };
+    /**
+     * Open addressing hash table of {@link #WELL_KNOWN} by UTF-8 bytes.
+     */
+    @NotNull
+    private static final String[] nameTable = new String[128];
+    @NotNull
+    private static final byte[][] nameBytes = new byte[128][];
+
+    static {
+        for (String name : WELL_KNOWN) {
+            final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            int slot = hash(bytes, 0, bytes.length) & (nameTable.length - 1);
+            while (nameTable[slot] != null)
+                slot = (slot + 1) & (nameTable.length - 1);
+            nameTable[slot] = name;
+            nameBytes[slot] = bytes;
+        }
+    }
+
+    @NotNull
+    private String[] names;
+    @NotNull
+    private Object[] values;
+    private int size;
+    /**
+     * Positions by name for large tables.
+     */
+    @Nullable
+    private Map<String, Integer> positions;
+
+    ParamTable(int capacity) {
+        this.names = new String[capacity];
+        this.values = new Object[capacity];
+    }
+
+    private ParamTable(@NotNull String[] names, @NotNull Object[] values, int size) {
+        this.names = names;
+        this.values = values;
+        this.size = size;
+        if (size > LINEAR_LIMIT)
+            this.positions = index(names, size);
+    }
+
+    /**
+     * Parameter name from frame. Well-known names are not decoded.
+     */
+    @NotNull
+    static String name(@NotNull byte[] buf, int offset, int length) {
+        int slot = hash(buf, offset, length) & (nameTable.length - 1);
+        byte[] bytes;
+        while ((bytes = nameBytes[slot]) != null) {
+            if (bytes.length == length && equals(bytes, buf, offset))
+                return nameTable[slot];
+            slot = (slot + 1) & (nameTable.length - 1);
+        }
+        return new String(buf, offset, length, StandardCharsets.UTF_8);
+    }
+
+    private static boolean equals(@NotNull byte[] bytes, @NotNull byte[] buf, int offset) {
+        for (int i = 0; i < bytes.length; ++i)
+            if (bytes[i] != buf[offset + i])
+                return false;
+        return true;
+    }
+
+    private static int hash(@NotNull byte[] buf, int offset, int length) {
+        int h = length;
+        for (int i = 0; i < length; ++i)
+            h = h * 31 + buf[offset + i];
+        return h ^ (h >>> 16) ^ (h >>> 7);
+    }
+
+    @NotNull
+    private static Map<String, Integer> index(@NotNull String[] names, int size) {
+        final Map<String, Integer> result = new HashMap<>(size * 2);
+        for (int i = 0; i < size; ++i)
+            result.put(names[i], i);
+        return result;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @NotNull
+    String name(int i) {
+        return names[i];
+    }
+
+    @NotNull
+    Object value(int i) {
+        return values[i];
+    }
+
+    /**
+     * @return Position of parameter or -1.
+     */
+    int find(@NotNull String key) {
+        if (positions != null) {
+            final Integer position = positions.get(key);
+            return position == null ? -1 : position;
+        }
+        for (int i = 0; i < size; ++i) {
+            final String name = names[i];
+            if (name == key || name.equals(key))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Set parameter value. Existing parameter keeps its position.
+     */
+    void put(@NotNull String name, @NotNull Object value) {
+        final int i = find(name);
+        if (i >= 0) {
+            values[i] = value;
+            return;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, Math.max(size * 2, 4));
+            values = Arrays.copyOf(values, names.length);
+        }
+        names[size] = name;
+        values[size] = value;
+        if (positions != null) {
+            positions.put(name, size);
+        } else if (size + 1 > LINEAR_LIMIT) {
+            positions = index(names, size + 1);
+        }
+        size++;
+    }
+
+    /**
+     * Copy with arrays trimmed to size. Copy is not modified later, so it is safe to share between threads.
+     */
+    @NotNull
+    ParamTable compact() {
+        return new ParamTable(Arrays.copyOf(names, size), Arrays.copyOf(values, size), size);
+    }
+
+    boolean hasBuffers() {
+        for (int i = 0; i < size; ++i)
+            if (!(values[i] instanceof byte[]))
+                return true;
+        return false;
+    }
+
+    /**
+     * Value as buffer. File regions are mapped into memory.
+     */
+    @NotNull
+    static ByteBuffer buffer(@NotNull Object value) {
+        if (value instanceof byte[])
+            return ByteBuffer.wrap((byte[]) value);
+        if (value instanceof ByteBuffer)
+            return ((ByteBuffer) value).duplicate();
+        try {
+            return ((FileRegion) value).map();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static int length(@NotNull Object value) {
+        if (value instanceof byte[])
+            return ((byte[]) value).length;
+        if (value instanceof ByteBuffer)
+            return ((ByteBuffer) value).remaining();
+        return ((FileRegion) value).length();
+    }
+
+    /**
+     * Value bytes, copied only for buffers and file regions.
+     */
+    @NotNull
+    static byte[] bytes(@NotNull Object value) {
+        if (value instanceof byte[])
+            return (byte[]) value;
+        if (value instanceof FileRegion) {
+            final FileRegion region = (FileRegion) value;
+            final byte[] result = new byte[region.length()];
+            region.read(result, 0);
+            return result;
+        }
+
+        final ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+}
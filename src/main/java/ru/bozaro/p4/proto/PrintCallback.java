@@ -0,0 +1,95 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.ws.Holder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes 'client-OutputText' and 'client-OutputBinary' chunks to {@link PrintTarget} directly from received frames.
+ * <p>
+ * File content ends with empty chunk, next file metadata or command completion.
+ * <p>
+ * Received frames are read into pooled buffers (see {@link Message#release()}) and chunk data is not copied
+ * again on its way to channel. File metadata is retained until file is completed.
+ *
+ * @author Artem V. Navrotskiy
+ */
+final class PrintCallback implements Client.Callback {
+
+    @NotNull
+    private final PrintTarget target;
+    @Nullable
+    private Message metadata;
+    @Nullable
+    private WritableByteChannel channel;
+
+    PrintCallback(@NotNull PrintTarget target) {
+        this.target = target;
+    }
+
+    @Override
+    public boolean poolFrames() {
+        return true;
+    }
+
+    @Override
+    public Message.Builder exec(@NotNull Message message, Holder<ErrorSeverity> severityHolder) throws IOException {
+        switch (message.getFuncId()) {
+            case ClientFstatInfo:
+                complete();
+                message.retain();
+                metadata = message;
+                channel = target.open(message);
+                return null;
+
+            case ClientOutputText:
+            case ClientOutputBinary:
+                final ByteBuffer data = message.getBuffer("data");
+                if (data == null || !data.hasRemaining()) {
+                    complete();
+                    return null;
+                }
+                if (channel != null) {
+                    while (data.hasRemaining())
+                        channel.write(data);
+                }
+                return null;
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Finish current file.
+     */
+    void complete() throws IOException {
+        final Message current = metadata;
+        final WritableByteChannel output = channel;
+        metadata = null;
+        channel = null;
+        if (current == null)
+            return;
+        try {
+            if (output != null)
+                target.complete(current, output);
+        } finally {
+            current.release();
+        }
+    }
+
+    /**
+     * Drop current file after command failure.
+     */
+    void discard() {
+        final Message current = metadata;
+        metadata = null;
+        channel = null;
+        if (current != null)
+            current.release();
+    }
+}
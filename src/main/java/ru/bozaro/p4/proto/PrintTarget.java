@@ -0,0 +1,30 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Destination of 'print' command output.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public interface PrintTarget {
+    /**
+     * Start of file content.
+     *
+     * @param metadata 'client-FstatInfo' message with depotFile, rev, change, action, type, time, fileSize and so on.
+     *                 It is valid until file is completed, see {@link Message#retain()}.
+     * @return Channel for file content or {@code null} to skip file. Channel is owned by caller.
+     */
+    @Nullable
+    WritableByteChannel open(@NotNull Message metadata) throws IOException;
+
+    /**
+     * End of file content: all chunks are written to channel.
+     */
+    default void complete(@NotNull Message metadata, @NotNull WritableByteChannel channel) throws IOException {
+    }
+}
@@ -0,0 +1,40 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Command result: highest message severity and all command output messages.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class Result {
+    @NotNull
+    private final ErrorSeverity severity;
+    @NotNull
+    private final List<Message> messages;
+
+    public Result(@NotNull ErrorSeverity severity, @NotNull List<Message> messages) {
+        this.severity = severity;
+        this.messages = messages;
+    }
+
+    @NotNull
+    public ErrorSeverity getSeverity() {
+        return severity;
+    }
+
+    public boolean isOk() {
+        return severity.isOk();
+    }
+
+    /**
+     * Output messages, like 'client-FstatInfo' for tagged commands. Builtin protocol messages are not included.
+     */
+    @NotNull
+    public List<Message> getMessages() {
+        return Collections.unmodifiableList(messages);
+    }
+}
@@ -0,0 +1,438 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.ws.Holder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar storage of tagged command output, for example 'fstat' or 'files' of whole depot.
+ * <p>
+ * Every tag is stored as separate column. Columns with few distinct values ('headAction', 'headType') are
+ * dictionary-encoded. Other columns store each value as suffix after prefix shared with previous value, so sorted
+ * depot paths take a few bytes per row.
+ * <p>
+ * Table is filled on message loop and must not be read until command completes. Completed table may be read by
+ * several cursors concurrently.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class ResultTable implements Client.Callback {
+
+    /**
+     * Column is dictionary-encoded while it has fewer distinct values or they are repeated often enough.
+     */
+    private static final int DICTIONARY_LIMIT = 1024;
+    /**
+     * Prefix-compressed value is stored in full every this many rows, for random access.
+     */
+    private static final int RESTART_INTERVAL = 16;
+
+    @NotNull
+    private final Map<String, Column> columnsByName = new HashMap<>();
+    @NotNull
+    private final List<Column> columns = new ArrayList<>();
+    /**
+     * Values of row being added, by column id.
+     */
+    @NotNull
+    private ByteBuffer[] row = new ByteBuffer[16];
+    private int rows;
+
+    @Nullable
+    @Override
+    public Message.Builder exec(@NotNull Message message, Holder<ErrorSeverity> severityHolder) {
+        if (message.getFuncId() == Func.ClientFstatInfo)
+            add(message);
+        return null;
+    }
+
+    /**
+     * Add message parameters as row.
+     */
+    public void add(@NotNull Message message) {
+        message.forEachParam((name, value) -> {
+            if (Message.FUNC.equals(name))
+                return;
+
+            Column column = columnsByName.get(name);
+            if (column == null) {
+                column = new DictionaryColumn(name, columns.size(), rows);
+                columns.add(column);
+                columnsByName.put(name, column);
+                if (row.length < columns.size())
+                    row = Arrays.copyOf(row, row.length * 2);
+            }
+            row[column.id] = value;
+        });
+
+        for (int i = 0; i < columns.size(); ++i) {
+            final Column column = columns.get(i);
+            final Column result = column.append(row[i], rows);
+            if (result != column) {
+                columns.set(i, result);
+                columnsByName.put(result.name, result);
+            }
+            row[i] = null;
+        }
+        rows++;
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * Tag names in order of first appearance.
+     */
+    @NotNull
+    public List<String> getColumns() {
+        final List<String> result = new ArrayList<>(columns.size());
+        for (Column column : columns)
+            result.add(column.name);
+        return Collections.unmodifiableList(result);
+    }
+
+    @NotNull
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Row reader. Sequential reading decodes each value once, {@link #seek(int)} is cheap too.
+     */
+    public final class Cursor {
+        /**
+         * Decoder state of prefix-compressed columns by column id.
+         */
+        @NotNull
+        private final PrefixReader[] readers = new PrefixReader[columns.size()];
+        private int current = -1;
+
+        private Cursor() {
+        }
+
+        /**
+         * Move to next row.
+         *
+         * @return {@code false} if there are no more rows.
+         */
+        public boolean next() {
+            if (current < rows)
+                current++;
+            return current < rows;
+        }
+
+        public void seek(int row) {
+            if (row < 0 || row >= rows)
+                throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+            current = row;
+        }
+
+        public int getRow() {
+            return current;
+        }
+
+        /**
+         * @return Tag value of current row or {@code null} if row has no such tag.
+         */
+        @Nullable
+        public String getString(@NotNull String tag) {
+            final Column column = column(tag);
+            if (column instanceof DictionaryColumn)
+                return ((DictionaryColumn) column).getString(current);
+            final PrefixReader reader = reader(column);
+            return reader == null ? null : reader.getString();
+        }
+
+        @Nullable
+        public byte[] getBytes(@NotNull String tag) {
+            final Column column = column(tag);
+            if (column instanceof DictionaryColumn)
+                return ((DictionaryColumn) column).getBytes(current);
+            final PrefixReader reader = reader(column);
+            return reader == null ? null : reader.getBytes();
+        }
+
+        @Nullable
+        private Column column(@NotNull String tag) {
+            if (current < 0 || current >= rows)
+                throw new IllegalStateException("Cursor is not positioned on row");
+            return columnsByName.get(tag);
+        }
+
+        @Nullable
+        private PrefixReader reader(@Nullable Column column) {
+            if (column == null || column.id >= readers.length)
+                return null;
+
+            PrefixReader reader = readers[column.id];
+            if (reader == null) {
+                reader = new PrefixReader((PrefixColumn) column);
+                readers[column.id] = reader;
+            }
+            return reader.seek(current) ? reader : null;
+        }
+    }
+
+    private abstract static class Column {
+        @NotNull
+        final String name;
+        final int id;
+
+        Column(@NotNull String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        /**
+         * Append value of next row.
+         *
+         * @param value    Value or {@code null} if row has no such tag.
+         * @param rowCount Rows in table before this one.
+         * @return This column or column it is converted to.
+         */
+        @NotNull
+        abstract Column append(@Nullable ByteBuffer value, int rowCount);
+    }
+
+    /**
+     * Values are stored once, rows keep value number.
+     */
+    private static final class DictionaryColumn extends Column {
+        @NotNull
+        private final Map<ByteBuffer, Integer> ids = new HashMap<>();
+        @NotNull
+        private final List<byte[]> values = new ArrayList<>();
+        @NotNull
+        private final List<String> strings = new ArrayList<>();
+        /**
+         * Value number plus one per row, zero for missing value.
+         */
+        @NotNull
+        private int[] rows;
+        private int size;
+
+        private DictionaryColumn(@NotNull String name, int id, int missingRows) {
+            super(name, id);
+            this.rows = new int[Math.max(missingRows * 2, 16)];
+            this.size = missingRows;
+        }
+
+        @NotNull
+        @Override
+        Column append(@Nullable ByteBuffer value, int rowCount) {
+            int number = 0;
+            if (value != null) {
+                final Integer known = ids.get(value);
+                if (known != null) {
+                    number = known;
+                } else if (values.size() >= DICTIONARY_LIMIT && values.size() * 8 > rowCount) {
+                    return toPrefix().append(value, rowCount);
+                } else {
+                    final byte[] bytes = new byte[value.remaining()];
+                    value.duplicate().get(bytes);
+                    values.add(bytes);
+                    strings.add(new String(bytes, StandardCharsets.UTF_8));
+                    number = values.size();
+                    ids.put(ByteBuffer.wrap(bytes), number);
+                }
+            }
+            if (size == rows.length)
+                rows = Arrays.copyOf(rows, size * 2);
+            rows[size++] = number;
+            return this;
+        }
+
+        @NotNull
+        private PrefixColumn toPrefix() {
+            final PrefixColumn result = new PrefixColumn(name, id, 0);
+            for (int i = 0; i < size; ++i)
+                result.append(rows[i] == 0 ? null : ByteBuffer.wrap(values.get(rows[i] - 1)), i);
+            return result;
+        }
+
+        @Nullable
+        private String getString(int row) {
+            final int number = rows[row];
+            return number == 0 ? null : strings.get(number - 1);
+        }
+
+        @Nullable
+        private byte[] getBytes(int row) {
+            final int number = rows[row];
+            return number == 0 ? null : values.get(number - 1).clone();
+        }
+    }
+
+    /**
+     * Row entry: varint(0) for missing value or varint(shared prefix length + 1), varint(suffix length) and suffix.
+     * Prefix is shared with previous present value since last restart.
+     */
+    private static final class PrefixColumn extends Column {
+        @NotNull
+        private byte[] data = new byte[1024];
+        private int length;
+        /**
+         * Data offset of every {@link #RESTART_INTERVAL}-th row.
+         */
+        @NotNull
+        private int[] restarts = new int[16];
+        private int size;
+        @NotNull
+        private byte[] last = new byte[64];
+        private int lastLength;
+
+        private PrefixColumn(@NotNull String name, int id, int missingRows) {
+            super(name, id);
+            for (int i = 0; i < missingRows; ++i)
+                append(null, i);
+        }
+
+        @NotNull
+        @Override
+        Column append(@Nullable ByteBuffer value, int rowCount) {
+            if (size % RESTART_INTERVAL == 0) {
+                final int restart = size / RESTART_INTERVAL;
+                if (restart == restarts.length)
+                    restarts = Arrays.copyOf(restarts, restart * 2);
+                restarts[restart] = length;
+                lastLength = 0;
+            }
+            size++;
+
+            if (value == null) {
+                ensure(1);
+                data[length++] = 0;
+                return this;
+            }
+
+            final int position = value.position();
+            final int valueLength = value.remaining();
+            final int max = Math.min(valueLength, lastLength);
+            int shared = 0;
+            while (shared < max && last[shared] == value.get(position + shared))
+                shared++;
+
+            final int suffix = valueLength - shared;
+            ensure(10 + suffix);
+            writeVarint(shared + 1);
+            writeVarint(suffix);
+            final ByteBuffer tail = value.duplicate();
+            tail.position(position + shared);
+            tail.get(data, length, suffix);
+            length += suffix;
+
+            if (last.length < valueLength)
+                last = Arrays.copyOf(last, Math.max(valueLength, last.length * 2));
+            System.arraycopy(data, length - suffix, last, shared, suffix);
+            lastLength = valueLength;
+            return this;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > data.length)
+                data = Arrays.copyOf(data, Math.max(length + extra, data.length + (data.length >> 1)));
+        }
+
+        private void writeVarint(int value) {
+            int v = value;
+            while ((v & ~0x7F) != 0) {
+                data[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[length++] = (byte) v;
+        }
+    }
+
+    /**
+     * Decoder of {@link PrefixColumn}, owned by cursor.
+     */
+    private static final class PrefixReader {
+        @NotNull
+        private final PrefixColumn column;
+        /**
+         * Last decoded row.
+         */
+        private int row = -1;
+        private int offset;
+        @NotNull
+        private byte[] value = new byte[64];
+        private int valueLength;
+        private boolean present;
+
+        private PrefixReader(@NotNull PrefixColumn column) {
+            this.column = column;
+        }
+
+        /**
+         * Decode row.
+         *
+         * @return {@code true} if row has value.
+         */
+        private boolean seek(int target) {
+            if (target >= column.size)
+                return false;
+
+            if (target < row || target - row > RESTART_INTERVAL) {
+                final int restart = target / RESTART_INTERVAL;
+                row = restart * RESTART_INTERVAL - 1;
+                offset = column.restarts[restart];
+            }
+            while (row < target)
+                decodeNext();
+            return present;
+        }
+
+        private void decodeNext() {
+            row++;
+            if (row % RESTART_INTERVAL == 0)
+                valueLength = 0;
+
+            final int header = readVarint();
+            if (header == 0) {
+                present = false;
+                return;
+            }
+            final int shared = header - 1;
+            final int suffix = readVarint();
+            if (value.length < shared + suffix)
+                value = Arrays.copyOf(value, Math.max(shared + suffix, value.length * 2));
+            System.arraycopy(column.data, offset, value, shared, suffix);
+            offset += suffix;
+            valueLength = shared + suffix;
+            present = true;
+        }
+
+        private int readVarint() {
+            final byte[] data = column.data;
+            int result = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                result |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return result;
+        }
+
+        @NotNull
+        private String getString() {
+            return new String(value, 0, valueLength, StandardCharsets.UTF_8);
+        }
+
+        @NotNull
+        private byte[] getBytes() {
+            return Arrays.copyOf(value, valueLength);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server capabilities learned by implicit 'info' command, shared by connections to same server.
+ * <p>
+ * While entry is fresh, new connections send first command right after 'protocol' message instead of
+ * waiting for 'info'.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class ServerInfoCache {
+
+    private final long ttl;
+    @NotNull
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param ttl Entry lifetime in milliseconds.
+     */
+    public ServerInfoCache(long ttl) {
+        if (ttl <= 0)
+            throw new IllegalArgumentException("Invalid TTL: " + ttl);
+
+        this.ttl = ttl;
+    }
+
+    /**
+     * Cache key: password state depends on user.
+     */
+    @NotNull
+    static String key(@NotNull SocketAddress address, @NotNull String username) {
+        if (address instanceof InetSocketAddress) {
+            final InetSocketAddress inet = (InetSocketAddress) address;
+            final String host = inet.getAddress() != null ? inet.getAddress().getHostAddress() : inet.getHostString();
+            return host + ':' + inet.getPort() + '=' + username;
+        }
+        return address + "=" + username;
+    }
+
+    @Nullable
+    Entry get(@NotNull String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        if (System.currentTimeMillis() - entry.created < ttl)
+            return entry;
+
+        entries.remove(key, entry);
+        return null;
+    }
+
+    void put(@NotNull String key, @NotNull Entry entry) {
+        entries.put(key, entry);
+    }
+
+    void invalidate(@NotNull String key) {
+        entries.remove(key);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    static final class Entry {
+        /**
+         * Protocol level from 'protocol' message, -1 if unknown.
+         */
+        final int protocol;
+        final boolean unicode;
+        /**
+         * Server 'rcvbuf', 0 if unknown.
+         */
+        final int rcvbuf;
+        final boolean passwordEnabled;
+        /**
+         * Server address reported by 'info': key of login tickets.
+         */
+        @Nullable
+        final String serverAddress;
+        private final long created = System.currentTimeMillis();
+
+        Entry(int protocol, boolean unicode, int rcvbuf, boolean passwordEnabled, @Nullable String serverAddress) {
+            this.protocol = protocol;
+            this.unicode = unicode;
+            this.rcvbuf = rcvbuf;
+            this.passwordEnabled = passwordEnabled;
+            this.serverAddress = serverAddress;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Single message of 'client-Message': error code, format and arguments.
+ * <p>
+ * Code layout: severity (4 bits), argument count (4 bits), generic code (8 bits), subsystem (6 bits) and
+ * subsystem-specific code (10 bits). Text is formatted on first request only.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class ServerMessage {
+
+    /**
+     * Subsystem of server command messages.
+     */
+    public static final int SUBSYSTEM_SERVER = 7;
+    /**
+     * "Perforce password (%'P4PASSWD'%) invalid or unset.": login required.
+     */
+    public static final int BAD_PASSWORD = (SUBSYSTEM_SERVER << 10) | 21;
+    /**
+     * "Your session has expired, please %'login'% again.": login ticket expired.
+     */
+    public static final int LOGIN_EXPIRED = (SUBSYSTEM_SERVER << 10) | 71;
+
+    private final int code;
+    @NotNull
+    private final String format;
+    /**
+     * Source message: format arguments are its parameters.
+     */
+    @NotNull
+    private final Message message;
+    @Nullable
+    private String text;
+
+    public ServerMessage(int code, @NotNull String format, @NotNull Message message) {
+        this.code = code;
+        this.format = format;
+        this.message = message;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    @NotNull
+    public ErrorSeverity getSeverity() {
+        final ErrorSeverity[] values = ErrorSeverity.values();
+        return values[Math.min((code >>> 28), values.length - 1)];
+    }
+
+    public int getArgCount() {
+        return (code >> 24) & 0xf;
+    }
+
+    /**
+     * Generic error class, same for all subsystems.
+     */
+    public int getGeneric() {
+        return (code >> 16) & 0xff;
+    }
+
+    public int getSubsystem() {
+        return (code >> 10) & 0x3f;
+    }
+
+    /**
+     * Code within subsystem.
+     */
+    public int getSubCode() {
+        return code & 0x3ff;
+    }
+
+    /**
+     * Subsystem and code within subsystem: identifies message regardless of severity and arguments.
+     */
+    public int getUniqueCode() {
+        return code & 0xffff;
+    }
+
+    /**
+     * Missing or expired login ticket: command may succeed after login.
+     */
+    public boolean isAuthError() {
+        if (!getSeverity().isError() || getSubsystem() != SUBSYSTEM_SERVER)
+            return false;
+
+        final int uniqueCode = getUniqueCode();
+        return uniqueCode == BAD_PASSWORD || uniqueCode == LOGIN_EXPIRED;
+    }
+
+    @NotNull
+    public String getFormat() {
+        return format;
+    }
+
+    @Nullable
+    public String getArg(@NotNull String name) {
+        return message.getString(name);
+    }
+
+    @NotNull
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Message text with substituted arguments.
+     */
+    @NotNull
+    public String getText() {
+        String result = text;
+        if (result == null) {
+            result = StringInterpolator.compile(format).render(s -> message.getStringOrDefault(s, ""));
+            text = result;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getText();
+    }
+}
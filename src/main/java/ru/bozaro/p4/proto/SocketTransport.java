@@ -0,0 +1,169 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking transport over {@link Socket}: incoming messages are processed on thread waiting for command.
+ * <p>
+ * Tasks of other threads are run under the same lock as message processing: by calling thread if
+ * connection is idle or by lock owner otherwise, so they never wait for it.
+ *
+ * @author Artem V. Navrotskiy
+ */
+final class SocketTransport implements Transport {
+
+    @NotNull
+    private final Socket socket;
+    @NotNull
+    private final MessageReader reader;
+    @NotNull
+    private final MessageWriter writer;
+    @NotNull
+    private final BufferPool pool;
+    @NotNull
+    private final ByteBuffer readBuffer;
+    @NotNull
+    private final ByteBuffer writeBuffer;
+    /**
+     * Threads using buffers. Buffers are returned to pool when transport is closed and not used.
+     */
+    private int busy;
+    private boolean closed;
+    @NotNull
+    private final ReentrantLock dispatchLock = new ReentrantLock();
+    /**
+     * Tasks waiting for {@link #dispatchLock}.
+     */
+    @NotNull
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    SocketTransport(@NotNull Socket socket, @NotNull FrameLimits limits, @NotNull BufferPool pool) throws IOException {
+        this.socket = socket;
+        this.pool = pool;
+        this.readBuffer = pool.acquireIO(MessageReader.DEFAULT_BUFFER_SIZE, false);
+        try {
+            this.writeBuffer = pool.acquireIO(MessageWriter.DEFAULT_BUFFER_SIZE, false);
+        } catch (IOException e) {
+            pool.releaseIO(readBuffer);
+            throw e;
+        }
+        this.reader = new MessageReader(socket.getInputStream(), readBuffer.array(), limits);
+        // Only sockets opened by SocketChannel have channel for gathering writes
+        this.writer = new MessageWriter(socket.getOutputStream(), socket.getChannel(), writeBuffer.array(), pool);
+    }
+
+    @Override
+    public void send(@NotNull Message message, @NotNull byte[] prefix) throws IOException {
+        enter();
+        try {
+            writer.send(message, prefix);
+        } finally {
+            exit();
+        }
+    }
+
+    private synchronized void enter() throws ClosedChannelException {
+        if (closed)
+            throw new ClosedChannelException();
+        busy++;
+    }
+
+    private synchronized void exit() {
+        busy--;
+        releaseBuffers();
+    }
+
+    private void releaseBuffers() {
+        if (closed && busy == 0) {
+            pool.releaseIO(readBuffer);
+            pool.releaseIO(writeBuffer);
+        }
+    }
+
+    @Override
+    public void execute(@NotNull Runnable task) {
+        tasks.add(task);
+        runTasks();
+    }
+
+    /**
+     * Run queued tasks unless other thread holds lock. Lock owner runs them after unlocking.
+     */
+    private void runTasks() {
+        while (!tasks.isEmpty() && dispatchLock.tryLock()) {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+            } finally {
+                dispatchLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void await(@NotNull Client client, @NotNull Future<?> future) throws IOException, InterruptedException {
+        while (!future.isDone()) {
+            final Message message;
+            try {
+                enter();
+                try {
+                    message = reader.recv(client.poolFrames() ? pool : null);
+                } finally {
+                    exit();
+                }
+            } catch (IOException e) {
+                dispatchLock.lock();
+                try {
+                    client.fail(e);
+                } finally {
+                    dispatchLock.unlock();
+                }
+                runTasks();
+                throw e;
+            }
+
+            dispatchLock.lock();
+            try {
+                client.receive(message);
+            } finally {
+                dispatchLock.unlock();
+                message.release();
+                runTasks();
+            }
+        }
+    }
+
+    @Override
+    public boolean isBlocking() {
+        return true;
+    }
+
+    @Override
+    public void pause() {
+    }
+
+    @Override
+    public void resume() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                releaseBuffers();
+            }
+        }
+        socket.close();
+    }
+}
@@ -2,6 +2,9 @@ package ru.bozaro.p4.proto;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Function;
 
 /**
@@ -9,9 +12,17 @@ import java.util.function.Function;
  */
 public final class StringInterpolator {
 
-    private static void append(@NotNull StringBuilder sb, @NotNull CharSequence s, int offset, int len) {
-        sb.append(s, offset, offset + len);
-    }
+    /**
+     * Maximum count of cached templates.
+     */
+    private static final int CACHE_SIZE = 1024;
+
+    /**
+     * Server sends messages of small fixed set of formats, so most formats are parsed once.
+     * Lookups don't lock: cache is shared by all connections.
+     */
+    @NotNull
+    private static final ConcurrentMap<String, StringTemplate> cache = new ConcurrentHashMap<>(CACHE_SIZE * 4 / 3 + 1);
 
     private static int memchr(@NotNull CharSequence s, int fromIndex, char c, int length) {
         int endIndex = fromIndex + Math.min(length, s.length() - fromIndex);
@@ -22,12 +33,47 @@ public final class StringInterpolator {
         return -1;
     }
 
+    @NotNull
+    public static String interpolate(@NotNull String m, @NotNull Function<String, String> lookup) {
+        return compile(m).render(lookup);
+    }
+
+    /**
+     * Parse format once for repeated rendering. Up to {@link #CACHE_SIZE} templates are cached.
+     */
+    @NotNull
+    public static StringTemplate compile(@NotNull String m) {
+        StringTemplate template = cache.get(m);
+        if (template == null) {
+            // Concurrent parse of same format is harmless
+            template = parse(m);
+            if (cache.size() >= CACHE_SIZE)
+                evict();
+            final StringTemplate prev = cache.putIfAbsent(m, template);
+            if (prev != null)
+                template = prev;
+        }
+        return template;
+    }
+
+    /**
+     * Drop arbitrary template to keep cache bounded. Formats are few, so eviction only happens
+     * when formats are built from message data.
+     */
+    private static void evict() {
+        final Iterator<String> iter = cache.keySet().iterator();
+        if (iter.hasNext()) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
     /**
      * Ported from https://swarm.workshop.perforce.com/projects/perforce_software-p4/files/2016-1/support/strops.cc (StrOps::Expand2)
      */
     @NotNull
-    public static String interpolate(@NotNull String m, @NotNull Function<String, String> lookup) {
-        final StringBuilder o = new StringBuilder();
+    private static StringTemplate parse(@NotNull String m) {
+        final StringTemplate.Builder o = new StringTemplate.Builder();
 
         int p = 0;
         int q, r, s, t;
@@ -39,14 +85,14 @@ public final class StringInterpolator {
         while ((q = m.indexOf('%', p)) >= 0) {
             if (q < m.length() - 1 && m.charAt(q + 1) == '\'') // %' stuff '%: include stuff, uninspected...
             {
-                for (s = q + 2; s < m.length(); s++)
+                for (s = q + 2; s < m.length() - 1; s++)
                     if (m.charAt(s) == '\'' && m.charAt(s + 1) == '%')
                         break;
-                if (s >= m.length())
+                if (s >= m.length() - 1)
                     break; // %'junk
-                append(o, m, p, q - p);
+                o.text(m, p, q - p);
                 q += 2;
-                append(o, m, q, s - q);
+                o.text(m, q, s - q);
                 p = s + 2;
                 continue;
             }
@@ -58,23 +104,22 @@ public final class StringInterpolator {
                 break;
             } else if (s == q + 1) {
                 // %% - [ %% ] not handled!
-                append(o, m, p, s - p);
+                o.text(m, p, s - p);
                 p = s + 1;
                 continue;
             }
 
-            // Pick out var name and look up value
+            // Pick out var name
 
             final String var = m.substring(q + 1, s);
-            final String val = lookup.apply(var);
 
             // Now handle %var% or [ %var% | alt ]
 
             if ((r = memchr(m, p, '[', q - p)) < 0) {
                 // %var%
 
-                append(o, m, p, q - p);
-                o.append(val);
+                o.text(m, p, q - p);
+                o.variable(var);
                 p = s + 1;
 
             } else if ((t = m.indexOf(']', s + 1)) < 0) {
@@ -83,29 +128,22 @@ public final class StringInterpolator {
             } else {
                 // [ stuff1 %var% stuff2 | alternate ]
 
-                append(o, m, p, r - p);
+                o.text(m, p, r - p);
 
                 // [ | alternate ]
 
                 int v = memchr(m, s, '|', t - s);
                 if (v < 0) v = t;
 
-                if (val.length() > 0) {
-                    // stuff1, val, stuff2
-                    append(o, m, r + 1, q - r - 1);
-                    o.append(val);
-                    append(o, m, s + 1, v - s - 1);
-                } else if (v < t) {
-                    // alternate
-                    append(o, m, v + 1, t - v - 1);
-                }
+                // stuff1, val, stuff2 or alternate
+                o.alternative(m.substring(r + 1, q), var, m.substring(s + 1, v), v < t ? m.substring(v + 1, t) : "");
 
                 p = t + 1;
             }
         }
 
-        o.append(m, p, m.length());
+        o.text(m, p, m.length() - p);
 
-        return o.toString();
+        return o.build();
     }
 }
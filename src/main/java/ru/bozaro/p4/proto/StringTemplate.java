@@ -0,0 +1,153 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Pre-parsed message format, see {@link StringInterpolator#compile(String)}.
+ * <p>
+ * Immutable and safe for concurrent use.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class StringTemplate {
+
+    @NotNull
+    private final Segment[] segments;
+    /**
+     * Total length of literal text: initial capacity of result.
+     */
+    private final int textLength;
+
+    private StringTemplate(@NotNull Segment[] segments, int textLength) {
+        this.segments = segments;
+        this.textLength = textLength;
+    }
+
+    @NotNull
+    public String render(@NotNull Function<String, String> lookup) {
+        final StringBuilder result = new StringBuilder(textLength + 16 * segments.length);
+        render(result, lookup);
+        return result.toString();
+    }
+
+    public void render(@NotNull StringBuilder result, @NotNull Function<String, String> lookup) {
+        for (Segment segment : segments)
+            segment.render(result, lookup);
+    }
+
+    private interface Segment {
+        void render(@NotNull StringBuilder result, @NotNull Function<String, String> lookup);
+    }
+
+    private static final class Text implements Segment {
+        @NotNull
+        private final String text;
+
+        private Text(@NotNull String text) {
+            this.text = text;
+        }
+
+        @Override
+        public void render(@NotNull StringBuilder result, @NotNull Function<String, String> lookup) {
+            result.append(text);
+        }
+    }
+
+    /**
+     * %var%
+     */
+    private static final class Variable implements Segment {
+        @NotNull
+        private final String name;
+
+        private Variable(@NotNull String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void render(@NotNull StringBuilder result, @NotNull Function<String, String> lookup) {
+            result.append(lookup.apply(name));
+        }
+    }
+
+    /**
+     * [ before %var% after | alternate ]
+     */
+    private static final class Alternative implements Segment {
+        @NotNull
+        private final String before;
+        @NotNull
+        private final String name;
+        @NotNull
+        private final String after;
+        @NotNull
+        private final String alternate;
+
+        private Alternative(@NotNull String before, @NotNull String name, @NotNull String after, @NotNull String alternate) {
+            this.before = before;
+            this.name = name;
+            this.after = after;
+            this.alternate = alternate;
+        }
+
+        @Override
+        public void render(@NotNull StringBuilder result, @NotNull Function<String, String> lookup) {
+            final String value = lookup.apply(name);
+            if (value.length() > 0)
+                result.append(before).append(value).append(after);
+            else
+                result.append(alternate);
+        }
+    }
+
+    /**
+     * Collects segments, merging adjacent text.
+     */
+    static final class Builder {
+        @NotNull
+        private final List<Segment> segments = new ArrayList<>();
+        @NotNull
+        private final StringBuilder text = new StringBuilder();
+        private int textLength;
+
+        @NotNull
+        Builder text(@NotNull CharSequence s, int offset, int len) {
+            text.append(s, offset, offset + len);
+            return this;
+        }
+
+        @NotNull
+        Builder variable(@NotNull String name) {
+            flushText();
+            segments.add(new Variable(name));
+            return this;
+        }
+
+        @NotNull
+        Builder alternative(@NotNull String before, @NotNull String name, @NotNull String after, @NotNull String alternate) {
+            flushText();
+            segments.add(new Alternative(before, name, after, alternate));
+            textLength += before.length() + after.length();
+            return this;
+        }
+
+        private void flushText() {
+            if (text.length() == 0)
+                return;
+
+            segments.add(new Text(text.toString()));
+            textLength += text.length();
+            text.setLength(0);
+        }
+
+        @NotNull
+        StringTemplate build() {
+            flushText();
+            return new StringTemplate(segments.toArray(new Segment[0]), textLength);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Storage of login tickets, keyed by server address and user name.
+ * <p>
+ * Implementations must be safe for concurrent use: one store is usually shared by many connections.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public interface TicketStore {
+    /**
+     * @return Ticket or null if user is not logged in to server.
+     */
+    @Nullable
+    String get(@NotNull String serverAddress, @NotNull String user) throws IOException;
+
+    void put(@NotNull String serverAddress, @NotNull String user, @NotNull String ticket) throws IOException;
+
+    void remove(@NotNull String serverAddress, @NotNull String user) throws IOException;
+}
@@ -0,0 +1,43 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * Client connection transport.
+ *
+ * @author Artem V. Navrotskiy
+ */
+interface Transport extends Closeable {
+
+    /**
+     * Send message with pre-encoded parameters inserted before its own ones.
+     */
+    void send(@NotNull Message message, @NotNull byte[] prefix) throws IOException;
+
+    /**
+     * Run task in transport context, never concurrently with message processing: on event loop thread or,
+     * for blocking transport, on caller thread or thread processing messages.
+     */
+    void execute(@NotNull Runnable task);
+
+    /**
+     * Wait for future completion.
+     * <p>
+     * Blocking transport reads and dispatches incoming messages on caller thread while waiting.
+     */
+    void await(@NotNull Client client, @NotNull Future<?> future) throws IOException, InterruptedException;
+
+    boolean isBlocking();
+
+    /**
+     * Stop reading incoming messages until {@link #resume()}. Blocking transport ignores it:
+     * callback can simply wait on dedicated thread.
+     */
+    void pause();
+
+    void resume();
+}
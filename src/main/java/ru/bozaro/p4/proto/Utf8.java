@@ -0,0 +1,74 @@
+package ru.bozaro.p4.proto;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * UTF-8 encoding straight into byte arrays, without intermediate {@link String#getBytes} copies.
+ * <p>
+ * Malformed surrogates are replaced by '?', same as {@link String#getBytes} does.
+ *
+ * @author Artem V. Navrotskiy
+ */
+final class Utf8 {
+
+    private Utf8() {
+    }
+
+    /**
+     * @return Encoded length of string in bytes.
+     */
+    static int length(@NotNull String s) {
+        final int size = s.length();
+        int result = size;
+        for (int i = 0; i < size; ++i) {
+            final char c = s.charAt(i);
+            if (c < 0x80)
+                continue;
+
+            if (c < 0x800) {
+                result += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // Surrogate pair: two chars, four bytes
+                result += 2;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Replaced by '?'
+            } else {
+                result += 2;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encode string into buffer.
+     *
+     * @return Position after encoded data.
+     */
+    static int encode(@NotNull String s, @NotNull byte[] buf, int offset) {
+        final int size = s.length();
+        int p = offset;
+        for (int i = 0; i < size; ++i) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[p++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[p++] = (byte) (0xC0 | (c >> 6));
+                buf[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[p++] = (byte) (0xF0 | (cp >> 18));
+                buf[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[p++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[p++] = '?';
+            } else {
+                buf[p++] = (byte) (0xE0 | (c >> 12));
+                buf[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return p;
+    }
+}
@@ -0,0 +1,17 @@
+package ru.bozaro.p4.sync;
+
+/**
+ * When synced file content is flushed to storage device.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public enum FsyncPolicy {
+    /**
+     * Leave flushing to operating system.
+     */
+    None,
+    /**
+     * Flush every file before renaming it to target path.
+     */
+    File
+}
@@ -0,0 +1,239 @@
+package ru.bozaro.p4.sync;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.bozaro.p4.proto.ClientPool;
+import ru.bozaro.p4.proto.ErrorSeverity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Workspace sync over several connections, like 'p4 sync --parallel'.
+ * <p>
+ * File list is resolved by 'sync -n', split into batches by file count and total size and synced by
+ * concurrent connections from {@link ClientPool}.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class ParallelSync {
+
+    @NotNull
+    private final ClientPool pool;
+    @NotNull
+    private final SyncEngine engine;
+    private final int connections;
+    private final int batchFiles;
+    private final long batchBytes;
+
+    /**
+     * @param connections Concurrent connection count.
+     * @param batchFiles  Maximum file count per batch.
+     * @param batchBytes  Maximum total file size per batch.
+     */
+    public ParallelSync(@NotNull ClientPool pool, @NotNull SyncEngine engine, int connections, int batchFiles, long batchBytes) {
+        if (connections <= 0)
+            throw new IllegalArgumentException("Invalid connection count: " + connections);
+        if (batchFiles <= 0)
+            throw new IllegalArgumentException("Invalid batch size: " + batchFiles);
+        if (batchBytes <= 0)
+            throw new IllegalArgumentException("Invalid batch size: " + batchBytes + " bytes");
+
+        this.pool = pool;
+        this.engine = engine;
+        this.connections = connections;
+        this.batchFiles = batchFiles;
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Sync files.
+     * <p>
+     * '-m max' limits resolved file list, '-q' applies to batches only. Preview options '-n' and '-N' and
+     * '--parallel' are rejected. Other options are passed to every 'sync' command.
+     *
+     * @param args Leading arguments starting with '-' are options, others are file specs.
+     */
+    @NotNull
+    public SyncResult sync(@NotNull ClientPool.Key key, @Nullable Progress progress, @NotNull String... args) throws IOException, InterruptedException {
+        final List<String> preview = new ArrayList<>();
+        final List<String> options = new ArrayList<>();
+        preview.add("-n");
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); ++i) {
+            final String option = args[i];
+            if (option.equals("-n") || option.equals("-N") || option.startsWith("--parallel"))
+                throw new IllegalArgumentException("Unsupported option: " + option);
+
+            if (option.startsWith("-m")) {
+                // Batches list their files explicitly
+                preview.add(option);
+                if (option.length() == 2) {
+                    if (++i == args.length)
+                        throw new IllegalArgumentException("Option requires value: " + option);
+                    preview.add(args[i]);
+                }
+            } else if (option.equals("-q")) {
+                // Quiet preview would report no files
+                options.add(option);
+            } else {
+                preview.add(option);
+                options.add(option);
+            }
+        }
+        preview.addAll(Arrays.asList(args).subList(i, args.length));
+        final String[] batchOptions = options.toArray(new String[0]);
+
+        final Merger merger = new Merger(progress);
+        final List<Batch> batches = new ArrayList<>();
+        final ErrorSeverity resolved = resolve(key, preview.toArray(new String[0]), batches);
+        merger.severity(resolved);
+        if (resolved.isError())
+            return merger.result();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, Math.max(batches.size(), 1)), runnable -> {
+            final Thread thread = new Thread(runnable, "p4-parallel-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Batch batch : batches)
+            merger.total(batch);
+        try {
+            for (Batch batch : batches) {
+                executor.execute(() -> merger.add(batch, syncBatch(key, batchOptions, batch)));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        return merger.result();
+    }
+
+    /**
+     * Resolve file revisions to sync with 'sync -n'.
+     */
+    @NotNull
+    private ErrorSeverity resolve(@NotNull ClientPool.Key key, @NotNull String[] preview, @NotNull List<Batch> batches) throws IOException, InterruptedException {
+        try (ClientPool.Lease lease = pool.borrow(key)) {
+            try {
+                return lease.getClient().exec((message, severityHolder) -> {
+                    final String depotFile = message.getString("depotFile");
+                    final String rev = message.getString("rev");
+                    if (depotFile == null || rev == null)
+                        return null;
+
+                    final String fileSize = message.getString("fileSize");
+                    final long size = fileSize == null ? 0 : Long.parseLong(fileSize);
+                    Batch batch = batches.isEmpty() ? null : batches.get(batches.size() - 1);
+                    if (batch == null || batch.files.size() >= batchFiles || (!batch.files.isEmpty() && batch.bytes + size > batchBytes)) {
+                        batch = new Batch();
+                        batches.add(batch);
+                    }
+                    batch.files.add(depotFile + "#" + rev);
+                    batch.bytes += size;
+                    return null;
+                }, "sync", preview);
+            } catch (IOException | RuntimeException e) {
+                lease.invalidate();
+                throw e;
+            }
+        }
+    }
+
+    @NotNull
+    private SyncResult syncBatch(@NotNull ClientPool.Key key, @NotNull String[] options, @NotNull Batch batch) {
+        final String[] args = new String[options.length + batch.files.size()];
+        System.arraycopy(options, 0, args, 0, options.length);
+        for (int i = 0; i < batch.files.size(); ++i)
+            args[options.length + i] = batch.files.get(i);
+
+        try (ClientPool.Lease lease = pool.borrow(key)) {
+            try {
+                return engine.sync(lease.getClient(), args);
+            } catch (IOException | RuntimeException e) {
+                lease.invalidate();
+                throw e;
+            }
+        } catch (IOException e) {
+            return failed(batch, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed(batch, e);
+        } catch (RuntimeException e) {
+            return failed(batch, e);
+        }
+    }
+
+    @NotNull
+    private static SyncResult failed(@NotNull Batch batch, @NotNull Exception cause) {
+        final IOException error = new IOException("Can't sync " + batch.files.size() + " files starting with " + batch.files.get(0), cause);
+        return new SyncResult(ErrorSeverity.Failed, 0, 0, Arrays.asList(error));
+    }
+
+    @FunctionalInterface
+    public interface Progress {
+        /**
+         * Called after each completed batch. May be called from several threads, but not concurrently.
+         */
+        void update(int completedFiles, int totalFiles, long completedBytes, long totalBytes);
+    }
+
+    private static final class Batch {
+        @NotNull
+        private final List<String> files = new ArrayList<>();
+        private long bytes;
+    }
+
+    /**
+     * Merges batch results.
+     */
+    private static final class Merger {
+        @Nullable
+        private final Progress progress;
+        @NotNull
+        private final List<IOException> errors = new ArrayList<>();
+        @NotNull
+        private ErrorSeverity severity = ErrorSeverity.None;
+        private int written;
+        private int deleted;
+        private int completedFiles;
+        private int totalFiles;
+        private long completedBytes;
+        private long totalBytes;
+
+        private Merger(@Nullable Progress progress) {
+            this.progress = progress;
+        }
+
+        private synchronized void severity(@NotNull ErrorSeverity value) {
+            if (value.compareTo(severity) > 0)
+                severity = value;
+        }
+
+        private synchronized void total(@NotNull Batch batch) {
+            totalFiles += batch.files.size();
+            totalBytes += batch.bytes;
+        }
+
+        private synchronized void add(@NotNull Batch batch, @NotNull SyncResult result) {
+            severity(result.getSeverity());
+            written += result.getWritten();
+            deleted += result.getDeleted();
+            errors.addAll(result.getErrors());
+            completedFiles += batch.files.size();
+            completedBytes += batch.bytes;
+            if (progress != null)
+                progress.update(completedFiles, totalFiles, completedBytes, totalBytes);
+        }
+
+        @NotNull
+        private synchronized SyncResult result() {
+            return new SyncResult(severity, written, deleted, new ArrayList<>(errors));
+        }
+    }
+}
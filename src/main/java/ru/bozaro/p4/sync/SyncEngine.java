@@ -0,0 +1,527 @@
+package ru.bozaro.p4.sync;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.bozaro.p4.proto.Client;
+import ru.bozaro.p4.proto.ErrorSeverity;
+import ru.bozaro.p4.proto.Message;
+
+import javax.xml.ws.Holder;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Workspace sync: handles 'client-OpenFile', 'client-WriteFile', 'client-CloseFile' and 'client-DeleteFile'.
+ * <p>
+ * Disk writes are performed by bounded writer pool, so message loop does not wait for disk I/O until
+ * amount of not yet written data exceeds limit. Then blocking connections wait and event loop connections are
+ * paused until writers catch up, so other connections of event loop are not stalled. Writes of one file are
+ * performed in order. File content is written to temporary file in target directory and renamed to target path
+ * on close.
+ * <p>
+ * File is confirmed to server only after it is written or deleted, failed operations are declined. Confirmations
+ * are sent in order by {@link Client#replyLater}, so next files are received meanwhile. Disk errors are reported
+ * by {@link SyncResult}.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class SyncEngine implements AutoCloseable {
+
+    @NotNull
+    private static final String TEMP_SUFFIX = ".p4tmp";
+
+    @NotNull
+    private final ExecutorService writers;
+    private final int maxPendingBytes;
+    @NotNull
+    private final FsyncPolicy fsyncPolicy;
+    @NotNull
+    private final Function<String, Path> pathResolver;
+    /**
+     * Size of received but not yet written data of all sessions.
+     */
+    private long pendingBytes;
+    /**
+     * Event loop sessions paused by pending bytes limit.
+     */
+    @NotNull
+    private final List<Session> throttled = new ArrayList<>();
+
+    /**
+     * @param writerCount     Writer thread count.
+     * @param maxPendingBytes Maximum size of received but not yet written data.
+     * @param fsyncPolicy     Flush policy.
+     */
+    public SyncEngine(int writerCount, int maxPendingBytes, @NotNull FsyncPolicy fsyncPolicy) {
+        this(writerCount, maxPendingBytes, fsyncPolicy, Paths::get);
+    }
+
+    /**
+     * @param pathResolver Maps 'path' parameter to local path.
+     */
+    public SyncEngine(int writerCount, int maxPendingBytes, @NotNull FsyncPolicy fsyncPolicy, @NotNull Function<String, Path> pathResolver) {
+        this(writerPool(writerCount), maxPendingBytes, fsyncPolicy, pathResolver);
+    }
+
+    /**
+     * @param writers Executor of disk operations, shut down by {@link #close()}. Operations of one file are
+     *                submitted one by one, so executor may run tasks in any order.
+     */
+    public SyncEngine(@NotNull ExecutorService writers, int maxPendingBytes, @NotNull FsyncPolicy fsyncPolicy, @NotNull Function<String, Path> pathResolver) {
+        if (maxPendingBytes <= 0)
+            throw new IllegalArgumentException("Invalid pending bytes limit: " + maxPendingBytes);
+
+        this.writers = writers;
+        this.maxPendingBytes = maxPendingBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.pathResolver = pathResolver;
+    }
+
+    @NotNull
+    private static ExecutorService writerPool(int writerCount) {
+        if (writerCount <= 0)
+            throw new IllegalArgumentException("Invalid writer count: " + writerCount);
+
+        return Executors.newFixedThreadPool(writerCount, runnable -> {
+            final Thread thread = new Thread(runnable, "p4-sync-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Run 'sync' command and wait until all files are written.
+     * <p>
+     * Engine may be used by several connections at once.
+     */
+    @NotNull
+    public SyncResult sync(@NotNull Client client, @NotNull String... args) throws IOException, InterruptedException {
+        final Session session = new Session(client);
+        ErrorSeverity severity = ErrorSeverity.None;
+        try {
+            severity = client.exec(session, "sync", args);
+        } finally {
+            session.finish();
+        }
+        return session.result(severity);
+    }
+
+    /**
+     * Stop writers and wait for queued disk operations. Interrupt status is preserved.
+     */
+    @Override
+    public void close() {
+        writers.shutdown();
+        boolean interrupted = false;
+        while (!writers.isTerminated()) {
+            try {
+                writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Account data queued for writing. Blocking connection waits while limit is exceeded, event loop connection
+     * is paused instead.
+     */
+    private void reserve(@NotNull Session session, int size) throws InterruptedException {
+        synchronized (this) {
+            if (session.client.isBlocking()) {
+                // Single chunk larger than limit is allowed
+                while (pendingBytes > 0 && pendingBytes + size > maxPendingBytes)
+                    wait();
+                pendingBytes += size;
+                return;
+            }
+
+            pendingBytes += size;
+            if (pendingBytes <= maxPendingBytes || throttled.contains(session))
+                return;
+            throttled.add(session);
+        }
+        // Resume is queued to message loop, so it can't overtake this pause
+        session.client.pause();
+    }
+
+    /**
+     * Data is written: wake up waiting connections and resume paused ones at half of limit.
+     */
+    private void release(int size) {
+        final List<Session> resumed;
+        synchronized (this) {
+            pendingBytes -= size;
+            notifyAll();
+            if (throttled.isEmpty() || pendingBytes > maxPendingBytes / 2)
+                return;
+            resumed = new ArrayList<>(throttled);
+            throttled.clear();
+        }
+        for (Session session : resumed)
+            session.client.execute(session.client::resume);
+    }
+
+    @FunctionalInterface
+    private interface IOTask {
+        void run() throws IOException;
+    }
+
+    @NotNull
+    private static Runnable unchecked(@NotNull IOTask task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    @NotNull
+    private static IOException unwrap(@NotNull Throwable e) {
+        Throwable cause = e;
+        while ((cause instanceof CompletionException || cause instanceof UncheckedIOException) && cause.getCause() != null)
+            cause = cause.getCause();
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    /**
+     * State of single 'sync' command.
+     */
+    private final class Session implements Client.Callback {
+        @NotNull
+        private final Client client;
+        /**
+         * Open files by handle. Accessed by message loop only.
+         */
+        @NotNull
+        private final Map<String, OpenFile> files = new HashMap<>();
+        @NotNull
+        private final List<IOException> errors = new ArrayList<>();
+        private int running;
+        private int written;
+        private int deleted;
+
+        private Session(@NotNull Client client) {
+            this.client = client;
+        }
+
+        /**
+         * File data is written from received frames, which are retained until written.
+         */
+        @Override
+        public boolean poolFrames() {
+            return true;
+        }
+
+        @Override
+        public Message.Builder exec(@NotNull Message message, Holder<ErrorSeverity> severityHolder) throws IOException, InterruptedException {
+            switch (message.getFuncId()) {
+                case ClientOpenFile:
+                    openFile(message);
+                    return null;
+                case ClientWriteFile:
+                    writeFile(message);
+                    return null;
+                case ClientCloseFile:
+                    confirm(message, "commit", closeFile(message));
+                    return null;
+                case ClientDeleteFile:
+                    confirm(message, "confirm", deleteFile(message));
+                    return null;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Confirm disk operation once it completes or decline it on failure. Message loop doesn't wait for it.
+         */
+        private void confirm(@NotNull Message message, @NotNull String key, @NotNull CompletableFuture<Void> task) {
+            message.retain();
+            client.replyLater(task.handle((v, e) -> {
+                try {
+                    return reply(message, e == null ? key : "decline");
+                } finally {
+                    message.release();
+                }
+            }));
+        }
+
+        /**
+         * Reply with function taken from request parameter.
+         */
+        @Nullable
+        private Message.Builder reply(@NotNull Message message, @NotNull String key) {
+            final byte[] func = message.getBytes(key);
+            if (func == null)
+                return null;
+            return message.toBuilder().param(Message.FUNC, func);
+        }
+
+        @NotNull
+        private String require(@NotNull Message message, @NotNull String key) throws IOException {
+            final String value = message.getString(key);
+            if (value == null)
+                throw new IOException("Parameter '" + key + "' is missing in " + message.getFunc());
+            return value;
+        }
+
+        /**
+         * Local file path from 'path' parameter, falling back to 'clientFile'.
+         */
+        @NotNull
+        private String path(@NotNull Message message) throws IOException {
+            final String path = message.getString("path");
+            return path != null ? path : require(message, "clientFile");
+        }
+
+        private void openFile(@NotNull Message message) throws IOException {
+            final String handle = require(message, "handle");
+            final OpenFile file = new OpenFile(pathResolver.apply(path(message)), message);
+            final OpenFile prev = files.put(handle, file);
+            if (prev != null)
+                abort(prev);
+
+            file.tail = CompletableFuture.runAsync(unchecked(file::open), writers);
+        }
+
+        private void writeFile(@NotNull Message message) throws IOException, InterruptedException {
+            final String handle = require(message, "handle");
+            final OpenFile file = files.get(handle);
+            if (file == null) {
+                error(new IOException("File is not opened: " + handle));
+                return;
+            }
+            final ByteBuffer data = message.getBuffer("data");
+            if (data == null) {
+                // File is declined on close
+                final String func = message.getFunc();
+                file.tail = file.tail.thenRun(unchecked(() -> {
+                    throw new IOException("Parameter 'data' is missing in " + func);
+                }));
+                return;
+            }
+            if (!data.hasRemaining())
+                return;
+
+            // Frame is retained until data is written, so it is not copied
+            final int size = data.remaining();
+            reserve(this, size);
+            message.retain();
+            file.tail = file.tail
+                    .thenRunAsync(unchecked(() -> file.write(data)), writers)
+                    .whenComplete((v, e) -> {
+                        message.release();
+                        release(size);
+                    });
+        }
+
+        @NotNull
+        private CompletableFuture<Void> closeFile(@NotNull Message message) throws IOException {
+            final String handle = require(message, "handle");
+            final OpenFile file = files.remove(handle);
+            if (file == null) {
+                final IOException error = new IOException("File is not opened: " + handle);
+                error(error);
+                final CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(error);
+                return failed;
+            }
+
+            final CompletableFuture<Void> task = file.tail.thenRunAsync(unchecked(file::commit), writers)
+                    .whenComplete((v, e) -> {
+                        if (e != null)
+                            file.discard();
+                    });
+            track(file.path, task, true);
+            return task;
+        }
+
+        @NotNull
+        private CompletableFuture<Void> deleteFile(@NotNull Message message) throws IOException {
+            final Path path = pathResolver.apply(path(message));
+            final CompletableFuture<Void> task = CompletableFuture.runAsync(unchecked(() -> Files.deleteIfExists(path)), writers);
+            track(path, task, false);
+            return task;
+        }
+
+        private synchronized void error(@NotNull IOException error) {
+            errors.add(error);
+        }
+
+        private void abort(@NotNull OpenFile file) {
+            track(file.path, file.tail.whenComplete((v, e) -> file.discard()).thenRun(() -> {
+                throw new UncheckedIOException(new IOException("File is not closed by server: " + file.path));
+            }), true);
+        }
+
+        private void track(@NotNull Path path, @NotNull CompletableFuture<Void> task, boolean write) {
+            synchronized (this) {
+                running++;
+            }
+            task.whenComplete((v, e) -> {
+                synchronized (this) {
+                    running--;
+                    if (e != null)
+                        errors.add(new IOException((write ? "Can't write " : "Can't delete ") + path, unwrap(e)));
+                    else if (write)
+                        written++;
+                    else
+                        deleted++;
+                    notifyAll();
+                }
+            });
+        }
+
+        /**
+         * Abort unclosed files and wait for all disk operations.
+         */
+        private void finish() throws InterruptedIOException {
+            for (OpenFile file : files.values())
+                abort(file);
+            files.clear();
+
+            boolean interrupted = false;
+            synchronized (this) {
+                while (running > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Temporary files must be cleaned up before return
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for disk writes");
+            }
+        }
+
+        @NotNull
+        private synchronized SyncResult result(@NotNull ErrorSeverity severity) {
+            return new SyncResult(severity, written, deleted, new ArrayList<>(errors));
+        }
+    }
+
+    /**
+     * File being written. Fields besides {@link #tail} are accessed by writer tasks only.
+     */
+    private final class OpenFile {
+        @NotNull
+        private final Path path;
+        @NotNull
+        private final String type;
+        @Nullable
+        private final String perms;
+        @Nullable
+        private final String modTime;
+        @NotNull
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        @Nullable
+        private Path temp;
+        @Nullable
+        private FileChannel channel;
+
+        private OpenFile(@NotNull Path path, @NotNull Message message) {
+            this.path = path;
+            this.type = message.getStringOrDefault("type", "text");
+            this.perms = message.getString("perms");
+            this.modTime = message.getString("modTime");
+        }
+
+        private void open() throws IOException {
+            final Path parent = path.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            temp = Files.createTempFile(parent, "." + path.getFileName(), TEMP_SUFFIX);
+            channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        }
+
+        private void write(@NotNull ByteBuffer data) throws IOException {
+            while (data.hasRemaining())
+                channel.write(data);
+        }
+
+        private void commit() throws IOException {
+            if (fsyncPolicy == FsyncPolicy.File)
+                channel.force(true);
+            channel.close();
+            channel = null;
+
+            if (modTime != null)
+                Files.setLastModifiedTime(temp, FileTime.from(Long.parseLong(modTime), TimeUnit.SECONDS));
+
+            setPermissions(temp);
+
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+        }
+
+        /**
+         * Files are read-only unless client has 'allwrite' option.
+         */
+        private void setPermissions(@NotNull Path file) throws IOException {
+            final boolean writable = "rw".equals(perms);
+            final boolean executable = isExecutable();
+            final PosixFileAttributeView view = Files.getFileAttributeView(file, PosixFileAttributeView.class);
+            if (view != null) {
+                final String others = executable ? "r-x" : "r--";
+                final String owner = "r" + (writable ? "w" : "-") + (executable ? "x" : "-");
+                view.setPermissions(PosixFilePermissions.fromString(owner + others + others));
+            } else {
+                file.toFile().setWritable(writable);
+                file.toFile().setExecutable(executable);
+            }
+        }
+
+        /**
+         * Executable bit: 'xtext', 'xbinary' or '+x' modifier.
+         */
+        private boolean isExecutable() {
+            final int modifiers = type.indexOf('+');
+            return type.startsWith("x") || (modifiers >= 0 && type.indexOf('x', modifiers) >= 0);
+        }
+
+        private void discard() {
+            try {
+                if (channel != null)
+                    channel.close();
+                if (temp != null)
+                    Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+            channel = null;
+            temp = null;
+        }
+    }
+}
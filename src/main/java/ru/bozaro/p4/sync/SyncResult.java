@@ -0,0 +1,61 @@
+package ru.bozaro.p4.sync;
+
+import org.jetbrains.annotations.NotNull;
+import ru.bozaro.p4.proto.ErrorSeverity;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Workspace sync result.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class SyncResult {
+    @NotNull
+    private final ErrorSeverity severity;
+    private final int written;
+    private final int deleted;
+    @NotNull
+    private final List<IOException> errors;
+
+    public SyncResult(@NotNull ErrorSeverity severity, int written, int deleted, @NotNull List<IOException> errors) {
+        this.severity = severity;
+        this.written = written;
+        this.deleted = deleted;
+        this.errors = errors;
+    }
+
+    /**
+     * Highest severity of server messages.
+     */
+    @NotNull
+    public ErrorSeverity getSeverity() {
+        return severity;
+    }
+
+    /**
+     * @return {@code true} if server reported no errors and all files are written. Warnings like
+     * "file(s) up-to-date" are not errors.
+     */
+    public boolean isOk() {
+        return !severity.isError() && errors.isEmpty();
+    }
+
+    public int getWritten() {
+        return written;
+    }
+
+    public int getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Local file system errors.
+     */
+    @NotNull
+    public List<IOException> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+}
@@ -0,0 +1,118 @@
+package ru.bozaro.p4;
+
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class BufferPoolTest {
+
+    @Test
+    public void reuse() throws InterruptedException {
+        final BufferPool pool = new BufferPool(0x400000, false);
+        final ByteBuffer first = pool.acquire(5000);
+        assertEquals(first.capacity(), 0x2000);
+        assertFalse(first.isDirect());
+        first.put((byte) 1);
+        pool.release(first);
+
+        final ByteBuffer second = pool.acquire(0x2000);
+        assertSame(second, first);
+        assertEquals(second.position(), 0);
+        assertEquals(pool.getHits(), 1);
+        assertEquals(pool.getMisses(), 1);
+        assertEquals(pool.getAllocatedBytes(), 0x2000);
+
+        final ByteBuffer large = pool.acquire(0x300000);
+        assertEquals(large.capacity(), 0x300000);
+        pool.release(large);
+        pool.release(second);
+        assertEquals(pool.getAllocatedBytes(), 0x2000);
+        assertEquals(pool.getCachedBytes(), 0x2000);
+    }
+
+    @Test
+    public void cacheLimit() throws InterruptedException {
+        final BufferPool pool = new BufferPool(0x4000000, false);
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 20; ++i)
+            buffers.add(pool.acquire(0x100000));
+        buffers.forEach(pool::release);
+
+        // Released buffers above cache limit are dropped even if budget allows more
+        assertEquals(pool.getCachedBytes(), 0x1000000);
+        assertEquals(pool.getAllocatedBytes(), 0x1000000);
+    }
+
+    @Test
+    public void budget() throws Exception {
+        final BufferPool pool = new BufferPool(0x100000, true);
+        final ByteBuffer first = pool.acquire(0x80000);
+        assertTrue(first.isDirect());
+        final ByteBuffer second = pool.acquire(0x80000);
+
+        final CompletableFuture<ByteBuffer> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.acquire(0x1000);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            fail("Budget is exhausted");
+        } catch (TimeoutException ignored) {
+        }
+
+        pool.release(first);
+        // Cached buffer of other size class is dropped to fit into budget
+        final ByteBuffer third = waiting.get(10, TimeUnit.SECONDS);
+        assertEquals(third.capacity(), 0x1000);
+        assertEquals(pool.getWaits(), 1);
+        assertEquals(pool.getCachedBytes(), 0);
+        assertEquals(pool.getAllocatedBytes(), 0x81000);
+
+        pool.release(second);
+        pool.release(third);
+    }
+
+    @Test
+    public void oversized() {
+        final BufferPool pool = new BufferPool(0x200000, false);
+        // Read and write buffers of connection
+        final ByteBuffer read = pool.tryAcquire(0x10000);
+        final ByteBuffer write = pool.tryAcquire(0x10000);
+        assertNotNull(read);
+        assertNotNull(write);
+
+        // Frame larger than budget can't be pooled while connection holds its own buffers
+        for (int i = 0; i < 3; ++i)
+            assertNull(pool.tryAcquire(0x300000));
+        assertEquals(pool.getAllocatedBytes(), 0x20000);
+        assertEquals(pool.getWaits(), 0);
+
+        pool.release(read);
+        pool.release(write);
+        final ByteBuffer large = pool.tryAcquire(0x300000);
+        assertNotNull(large);
+        assertEquals(pool.getCachedBytes(), 0);
+        pool.release(large);
+        assertEquals(pool.getAllocatedBytes(), 0);
+    }
+}
@@ -0,0 +1,158 @@
+package ru.bozaro.p4;
+
+import org.jetbrains.annotations.NotNull;
+import ru.bozaro.p4.proto.Client;
+import ru.bozaro.p4.proto.EventLoop;
+import ru.bozaro.p4.proto.Message;
+import ru.bozaro.p4.proto.MessageReader;
+import ru.bozaro.p4.proto.MessageWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scripted server for protocol tests without p4d.
+ * <p>
+ * Every user command is passed to {@link Handler} and completed by 'release'. Other client messages received
+ * between commands are ignored.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class FakeServer implements AutoCloseable {
+
+    @NotNull
+    private final ServerSocket serverSocket;
+    @NotNull
+    private final Handler handler;
+    @NotNull
+    private final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+
+    public FakeServer(@NotNull Handler handler) throws IOException {
+        this.handler = handler;
+        this.serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(this::accept, "fake-p4d");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @NotNull
+    public Client connect() throws IOException {
+        return connect((severity, message) -> {
+        });
+    }
+
+    @NotNull
+    public Client connect(@NotNull Client.MessageOutput output) throws IOException {
+        final Socket socket = SocketChannel.open(serverSocket.getLocalSocketAddress()).socket();
+        return new Client(socket, "JackSparrow", "", "JackSparrow", (prompt, noecho) -> "", output, false);
+    }
+
+    @NotNull
+    public Client connect(@NotNull EventLoop loop) throws IOException {
+        return loop.connect(new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort()),
+                "JackSparrow", "", "JackSparrow", (prompt, noecho) -> "", (severity, message) -> {
+                }, false);
+    }
+
+    /**
+     * Handler failures, for example failed assertions.
+     */
+    @NotNull
+    public List<Throwable> getErrors() {
+        return errors;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                final Thread thread = new Thread(() -> serve(socket), "fake-p4d-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException ignored) {
+            // Server is closed
+        }
+    }
+
+    private void serve(@NotNull Socket socket) {
+        try (Connection connection = new Connection(socket)) {
+            while (true) {
+                final Message message = connection.recv();
+                if (!message.getFunc().startsWith("user-"))
+                    continue;
+
+                handler.exec(message, connection);
+                connection.send(new Message.Builder()
+                        .param(Message.FUNC, "release")
+                        .build());
+            }
+        } catch (IOException ignored) {
+            // Client disconnected
+        } catch (Throwable e) {
+            errors.add(e);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param command User command, for example 'user-sync'. Implicit 'user-info' is passed too.
+         */
+        void exec(@NotNull Message command, @NotNull Connection connection) throws Exception;
+    }
+
+    public static final class Connection implements AutoCloseable {
+        @NotNull
+        private final Socket socket;
+        @NotNull
+        private final InputStream input;
+        @NotNull
+        private final MessageReader reader;
+        @NotNull
+        private final MessageWriter writer;
+
+        private Connection(@NotNull Socket socket) throws IOException {
+            this.socket = socket;
+            this.input = socket.getInputStream();
+            // Buffer of header size: reader never reads ahead, so unread client messages are visible by idle()
+            this.reader = new MessageReader(input, 5);
+            this.writer = new MessageWriter(socket.getOutputStream());
+        }
+
+        public void send(@NotNull Message message) throws IOException {
+            writer.send(message);
+        }
+
+        @NotNull
+        public Message recv() throws IOException {
+            return reader.recv();
+        }
+
+        /**
+         * @return {@code true} if client sends nothing for given time.
+         */
+        public boolean idle(long millis) throws IOException, InterruptedException {
+            Thread.sleep(millis);
+            return input.available() == 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package ru.bozaro.p4;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+import ru.bozaro.p4.crypto.Mangle;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Golden vectors are produced by original implementation.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class MangleTest {
+
+    @NotNull
+    private static byte[] bytes(@NotNull String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    private static String string(@NotNull byte[] value) {
+        return new String(value, StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void in() {
+        assertEquals(string(Mangle.In(bytes("password"), bytes("key"))), "3D0FBBB766DCDAC22E9C1549F5EECDCD");
+        assertEquals(string(Mangle.In(bytes(""), bytes("key"))), "");
+        assertEquals(string(Mangle.In(bytes("0123456789abcdef"), bytes("0123456789abcdefXYZ"))), "DC05A48BF01DAFD337AFB0B175A40AA3");
+        assertEquals(string(Mangle.In(bytes("Пароль"), bytes("ключ"))), "E2207BB96F329B1969C5692150769482");
+        assertEquals(string(Mangle.In(bytes("a"), bytes(""))), "FCB2EE1AAEEB66EE0E718969850A3CBE");
+        assertEquals(string(Mangle.In(bytes("a much longer secret value of 40 chars!!"), bytes("k"))),
+                "F3CC4DCB1030444CF788C914C05264ACF9E321425762F45D4B8E7260AD862FC6B6B658537C03A3FCABFDB7F8CD15CF40");
+    }
+
+    @Test
+    public void out() {
+        assertEquals(string(Mangle.OtoX(Mangle.Out(bytes("3D0FBBB766DCDAC22E9C1549F5EECDCD"), bytes("key")))), "92AC2EB1B11A2943EAF04249D51DFE70");
+        assertEquals(string(Mangle.OtoX(Mangle.Out(bytes("99A3DE93AAE0941065CA14FD6C7BD29F"), bytes("0123456789abcdefXYZ")))), "30313233343536373839616263646566");
+        assertEquals(string(Mangle.OtoX(Mangle.Out(bytes("F3CC4DCB1030444CF788C914C05264ACF9E321425762F45D4B8E7260AD862FC6B6B658537C03A3FCABFDB7F8CD15CF40"), bytes("k")))),
+                "25D549F8813F65D4231AEAFA3F347003F7DFF091E30543976DE24463C1F2EAB1B088AF6285FD9E75E213D9C248A93920");
+    }
+
+    @Test
+    public void md5() {
+        assertEquals(string(Mangle.InMD5(bytes("94A08DA1FECBB6E8B46990538C7B50B2"), bytes("2F9C7D4E2C2F8DBD4AAE1E4F4C6CE2E7"))), "687CF9846BDF7BBD35622DFEC2CB94CA");
+        assertEquals(string(Mangle.InMD5(bytes("5d41402abc4b2a76b9719d911017c592"), bytes("7D793037A0760186574B0282F2F435E7"))), "84BCB6FAE63E3C7C9EFA98F1875883D4");
+        assertEquals(string(Mangle.InMD5(bytes("00000000000000000000000000000000"), bytes("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF"))), "A5F5D95975EDE504AB7E4274066D31C7");
+
+        assertEquals(string(Mangle.OutMD5(bytes("94A08DA1FECBB6E8B46990538C7B50B2"), bytes("2F9C7D4E2C2F8DBD4AAE1E4F4C6CE2E7"))), "6E4495F5575FAA3DBB2C035DF4894ED1");
+        assertEquals(string(Mangle.OutMD5(bytes("5d41402abc4b2a76b9719d911017c592"), bytes("7D793037A0760186574B0282F2F435E7"))), "621C99B569CCE820AEDED737300EE338");
+        assertEquals(string(Mangle.OutMD5(bytes("00000000000000000000000000000000"), bytes("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF"))), "27751D05E8DEDE0AF1866613848039E2");
+    }
+
+    @Test
+    public void xor() {
+        assertEquals(string(Mangle.XOR(bytes("94A08DA1FECBB6E8B46990538C7B50B2"), bytes("2F9C7D4E2C2F8DBD4AAE1E4F4C6CE2E7"))), "BB3CF0EFD2E43B55FEC78E1CC017B255");
+        assertEquals(string(Mangle.XOR(bytes("5d41402abc4b2a76b9719d911017c592"), bytes("7D793037A0760186574B0282F2F435E7"))), "2038701D1C3D2BF0EE3A9F13E2E3F075");
+        assertEquals(string(Mangle.XOR(bytes("00000000000000000000000000000000"), bytes("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF"))), "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF");
+    }
+
+    /**
+     * Decipher must not change encipher tables.
+     */
+    @Test
+    public void concurrent() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; ++i) {
+                final boolean decipher = (i & 1) != 0;
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 10000; ++j) {
+                        if (decipher) {
+                            assertEquals(string(Mangle.OutMD5(bytes("5d41402abc4b2a76b9719d911017c592"), bytes("7D793037A0760186574B0282F2F435E7"))), "621C99B569CCE820AEDED737300EE338");
+                        } else {
+                            assertEquals(string(Mangle.InMD5(bytes("5d41402abc4b2a76b9719d911017c592"), bytes("7D793037A0760186574B0282F2F435E7"))), "84BCB6FAE63E3C7C9EFA98F1875883D4");
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package ru.bozaro.p4;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.FrameLimits;
+import ru.bozaro.p4.proto.Func;
+import ru.bozaro.p4.proto.Message;
+import ru.bozaro.p4.proto.MessageReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class MessageReaderTest {
+
+    @NotNull
+    private static Message message(int index, int dataSize) {
+        final byte[] data = new byte[dataSize];
+        for (int i = 0; i < data.length; ++i)
+            data[i] = (byte) (i * 31 + index);
+
+        return new Message.Builder()
+                .param("depotFile", "//depot/file" + index)
+                .param("data", data)
+                .arg("arg" + index)
+                .param(Message.FUNC, "client-FstatInfo")
+                .build();
+    }
+
+    private static void check(int bufferSize, int dataSize) throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; ++i)
+            message(i, dataSize).send(stream);
+
+        final MessageReader reader = new MessageReader(new ByteArrayInputStream(stream.toByteArray()), bufferSize);
+        for (int i = 0; i < 10; ++i) {
+            final Message expected = message(i, dataSize);
+            final Message actual = reader.recv();
+            assertEquals(actual.getFunc(), expected.getFunc());
+            assertEquals(actual.getFuncId(), Func.ClientFstatInfo);
+            assertEquals(actual.getString("depotFile"), expected.getString("depotFile"));
+            assertEquals(actual.getBytes("data"), expected.getBytes("data"));
+            assertEquals(actual.getBuffer("data"), ByteBuffer.wrap(expected.getBytes("data")));
+            assertEquals(actual.getArgs(), expected.getArgs());
+        }
+    }
+
+    @Test
+    public void smallFrames() throws IOException {
+        check(0x10000, 10);
+    }
+
+    @Test
+    public void frameAcrossBufferBoundary() throws IOException {
+        check(100, 40);
+    }
+
+    @Test
+    public void frameLargerThanBuffer() throws IOException {
+        check(64, 1000);
+    }
+
+    @Test
+    public void lazyAccess() throws IOException {
+        final Message expected = new Message.Builder()
+                .param("clientFile", "/home/user/файл")
+                .param("ключ", "значение")
+                .param("empty", "")
+                .arg("-n")
+                .arg("//depot/...")
+                .param(Message.FUNC, "client-FstatInfo")
+                .build();
+
+        final Message actual = new MessageReader(new ByteArrayInputStream(expected.serialize())).recv();
+        assertEquals(actual.getString("clientFile"), "/home/user/файл");
+        assertEquals(actual.getString("ключ"), "значение");
+        assertEquals(actual.getString("empty"), "");
+        assertNull(actual.getString("missing"));
+        assertNull(actual.getBytes("client"));
+        assertNull(actual.getBytes(""));
+        assertEquals(actual.getArgs(), expected.getArgs());
+        assertEquals(new ArrayList<>(actual.getParams().keySet()), Arrays.asList("clientFile", "ключ", "empty", Message.FUNC));
+        assertEquals(actual.getString("clientFile"), "/home/user/файл");
+        assertEquals(actual.serialize(), expected.serialize());
+    }
+
+    @Test
+    public void manyParams() throws IOException {
+        final Message.Builder builder = new Message.Builder();
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            builder.param("depotFile" + i, "//depot/" + i);
+            names.add("depotFile" + i);
+        }
+        builder.param("depotFile10", "//depot/replaced");
+        names.add(Message.FUNC);
+        final Message expected = builder.param(Message.FUNC, "client-FstatInfo").build();
+
+        assertEquals(new ArrayList<>(expected.getParams().keySet()), names);
+        assertEquals(expected.getString("depotFile10"), "//depot/replaced");
+        assertEquals(expected.getString("depotFile99"), "//depot/99");
+        assertNull(expected.getString("depotFile100"));
+
+        final Message actual = new MessageReader(new ByteArrayInputStream(expected.serialize())).recv();
+        assertEquals(new ArrayList<>(actual.getParams().keySet()), names);
+        assertEquals(actual.toBuilder().build().serialize(), expected.serialize());
+    }
+
+    @Test
+    public void funcId() throws IOException {
+        for (Func func : Func.values()) {
+            final Message message = new Message.Builder().param(Message.FUNC, func.getName()).build();
+            assertEquals(new MessageReader(new ByteArrayInputStream(message.serialize())).recv().getFuncId(), func);
+            assertEquals(message.getFuncId(), func);
+            assertEquals(Func.of(func.getName()), func);
+        }
+        final Message unknown = new Message.Builder().param(Message.FUNC, "client-Unknown").build();
+        assertEquals(new MessageReader(new ByteArrayInputStream(unknown.serialize())).recv().getFuncId(), Func.Unknown);
+        assertEquals(new Message.Builder().param("depotFile", "//depot/a").build().getFuncId(), Func.Unknown);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void truncated() throws IOException {
+        final byte[] frame = message(0, 10).serialize();
+        new MessageReader(new ByteArrayInputStream(frame, 0, frame.length - 1)).recv();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void checksumMismatch() throws IOException {
+        final byte[] frame = message(0, 10).serialize();
+        frame[0] ^= 1;
+        new MessageReader(new ByteArrayInputStream(frame)).recv();
+    }
+
+    @Test
+    public void spill() throws IOException {
+        final FrameLimits limits = new FrameLimits(Integer.MAX_VALUE, 500, null);
+        for (int bufferSize : new int[]{64, 0x10000}) {
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            for (int i = 0; i < 10; ++i)
+                message(i, i * 300).send(stream);
+
+            final MessageReader reader = new MessageReader(new ByteArrayInputStream(stream.toByteArray()), bufferSize, limits);
+            for (int i = 0; i < 10; ++i) {
+                final Message expected = message(i, i * 300);
+                final Message actual = reader.recv();
+                assertEquals(actual.getFuncId(), Func.ClientFstatInfo);
+                assertEquals(actual.getString("depotFile"), expected.getString("depotFile"));
+                assertEquals(actual.getBytes("data"), expected.getBytes("data"));
+                assertEquals(actual.getBuffer("data").isDirect(), i >= 2);
+                assertEquals(actual.getArgs(), expected.getArgs());
+                assertEquals(actual.serialize(), expected.serialize());
+            }
+        }
+    }
+
+    @Test
+    public void channel() throws IOException {
+        final Message expected = message(1, 100000);
+        final ByteArrayInputStream stream = new ByteArrayInputStream(expected.serialize());
+        final Message actual = Message.recv(stream, new FrameLimits(Integer.MAX_VALUE, 1000, null));
+        assertEquals(stream.available(), 0);
+
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final ByteBuffer chunk = ByteBuffer.allocate(4096);
+        try (ReadableByteChannel channel = actual.getChannel("data")) {
+            while (channel.read(chunk) >= 0) {
+                data.write(chunk.array(), 0, chunk.position());
+                chunk.clear();
+            }
+        }
+        assertEquals(data.toByteArray(), expected.getBytes("data"));
+        assertNull(actual.getChannel("missing"));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void frameTooLarge() throws IOException {
+        final byte[] frame = message(0, 1000).serialize();
+        new MessageReader(new ByteArrayInputStream(frame), 0x10000, new FrameLimits(500, 500, null)).recv();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void spillTruncated() throws IOException {
+        final byte[] frame = message(0, 1000).serialize();
+        new MessageReader(new ByteArrayInputStream(frame, 0, frame.length - 1), 0x10000, new FrameLimits(Integer.MAX_VALUE, 100, null)).recv();
+    }
+}
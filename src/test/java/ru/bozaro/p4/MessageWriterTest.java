@@ -0,0 +1,161 @@
+package ru.bozaro.p4;
+
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.Message;
+import ru.bozaro.p4.proto.MessageReader;
+import ru.bozaro.p4.proto.MessageWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class MessageWriterTest {
+
+    @Test
+    public void bufferParam() throws IOException {
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; ++i)
+            data[i] = (byte) (i * 31);
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 10);
+        direct.position(10);
+        direct.put(data);
+        direct.position(10);
+
+        final Message expected = new Message.Builder()
+                .param("handle", "h1")
+                .param("data", data)
+                .param(Message.FUNC, "dm-WriteFile")
+                .build();
+        final Message actual = new Message.Builder()
+                .param("handle", "h1")
+                .param("data", direct)
+                .param(Message.FUNC, "dm-WriteFile")
+                .build();
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        new MessageWriter(stream).send(actual);
+        assertEquals(stream.toByteArray(), expected.serialize());
+        assertEquals(actual.getBytes("data"), data);
+        // Buffer position is not changed by send
+        assertEquals(direct.position(), 10);
+
+        final Message received = new MessageReader(new ByteArrayInputStream(stream.toByteArray())).recv();
+        assertEquals(received.getBytes("data"), data);
+        assertEquals(received.getString("handle"), "h1");
+    }
+
+    @Test
+    public void fileRegionParam() throws IOException {
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; ++i)
+            data[i] = (byte) (i * 17);
+
+        final Path file = Files.createTempFile("p4-region-", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(data), 0);
+
+            final Message expected = new Message.Builder()
+                    .param("handle", "h1")
+                    .param("data", ByteBuffer.wrap(data, 100, 90000))
+                    .param("data2", data)
+                    .param(Message.FUNC, "dm-WriteFile")
+                    .build();
+            final Message actual = new Message.Builder()
+                    .param("handle", "h1")
+                    .param("data", channel, 100, 90000)
+                    .param("data2", channel, 0, data.length)
+                    .param(Message.FUNC, "dm-WriteFile")
+                    .build();
+
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            new MessageWriter(stream).send(actual);
+            assertEquals(stream.toByteArray(), expected.serialize());
+            assertEquals(actual.serialize(), expected.serialize());
+            assertEquals(actual.getBytes("data"), expected.getBytes("data"));
+            assertEquals(actual.getBytes("data2"), data);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Buffer values of socket channel connection are written by gathering write without copying.
+     */
+    @Test
+    public void gatheringWrite() throws IOException {
+        final ByteBuffer data = ByteBuffer.allocateDirect(100000);
+        while (data.hasRemaining())
+            data.put((byte) data.position());
+        data.flip();
+
+        final Message message = new Message.Builder()
+                .param("handle", "h1")
+                .param("data", data)
+                .param(Message.FUNC, "dm-WriteFile")
+                .build();
+
+        final List<ByteBuffer[]> writes = new ArrayList<>();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final GatheringByteChannel channel = new GatheringByteChannel() {
+            @Override
+            public long write(ByteBuffer[] srcs, int offset, int length) {
+                writes.add(Arrays.copyOfRange(srcs, offset, offset + length));
+                long written = 0;
+                for (int i = offset; i < offset + length; ++i) {
+                    while (srcs[i].hasRemaining()) {
+                        received.write(srcs[i].get());
+                        written++;
+                    }
+                }
+                return written;
+            }
+
+            @Override
+            public long write(ByteBuffer[] srcs) {
+                return write(srcs, 0, srcs.length);
+            }
+
+            @Override
+            public int write(ByteBuffer src) {
+                throw new AssertionError("Single buffer write");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final OutputStream stream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw new AssertionError("Stream write");
+            }
+        };
+
+        new MessageWriter(stream, channel).send(message);
+        assertEquals(writes.size(), 1);
+        assertTrue(Arrays.stream(writes.get(0)).anyMatch(ByteBuffer::isDirect));
+        assertEquals(received.toByteArray(), message.serialize());
+    }
+}
@@ -0,0 +1,97 @@
+package ru.bozaro.p4;
+
+import org.jetbrains.annotations.NotNull;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.Client;
+import ru.bozaro.p4.proto.EventLoop;
+import ru.bozaro.p4.proto.Message;
+import ru.bozaro.p4.proto.Result;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class P4AsyncTest {
+
+    @Test(dataProvider = "all", dataProviderClass = P4TesterDataProvider.class)
+    void socketResult(@NotNull P4TesterFactory factory) throws Exception {
+        try (P4Tester tester = factory.createTester();
+             Client client = tester.connect()) {
+            checkResult(client);
+        }
+    }
+
+    @Test(dataProvider = "all", dataProviderClass = P4TesterDataProvider.class)
+    void eventLoopResult(@NotNull P4TesterFactory factory) throws Exception {
+        try (P4Tester tester = factory.createTester(); EventLoop loop = new EventLoop()) {
+            // Wait for server startup
+            tester.connect().close();
+            try (Client client = tester.connect(loop)) {
+                checkResult(client);
+            }
+        }
+    }
+
+    @Test(dataProvider = "all", dataProviderClass = P4TesterDataProvider.class)
+    void stream(@NotNull P4TesterFactory factory) throws Exception {
+        try (P4Tester tester = factory.createTester();
+             Client client = tester.connect()) {
+            try (Stream<Message> stream = client.stream("info")) {
+                assertTrue(stream.anyMatch(message -> message.getString("serverAddress") != null));
+            }
+            // Connection is still usable after early close
+            try (Stream<Message> stream = client.stream("info")) {
+                assertEquals(stream.count(), 1L);
+            }
+        }
+    }
+
+    private static void checkResult(@NotNull Client client) throws Exception {
+        final CompletableFuture<Result> info = client.p4Async("info");
+        final CompletableFuture<Result> unknown = client.p4Async("no-such-command");
+
+        assertTrue(info.get(30, TimeUnit.SECONDS).isOk());
+        assertFalse(info.get().getMessages().isEmpty());
+        assertFalse(unknown.get(30, TimeUnit.SECONDS).isOk());
+
+        // Single item per request
+        final CompletableFuture<Integer> published = new CompletableFuture<>();
+        client.publish("info").subscribe(new Subscriber<Message>() {
+            private final AtomicInteger count = new AtomicInteger();
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(@NotNull Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(@NotNull Message message) {
+                count.incrementAndGet();
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(@NotNull Throwable e) {
+                published.completeExceptionally(e);
+            }
+
+            @Override
+            public void onComplete() {
+                published.complete(count.get());
+            }
+        });
+        assertEquals(published.get(30, TimeUnit.SECONDS).intValue(), info.get().getMessages().size());
+    }
+}
@@ -3,6 +3,9 @@ package ru.bozaro.p4;
 import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.Test;
 import ru.bozaro.p4.proto.Client;
+import ru.bozaro.p4.proto.MemoryTicketStore;
+import ru.bozaro.p4.proto.ServerInfoCache;
+import ru.bozaro.p4.proto.TicketStore;
 
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
@@ -55,4 +58,24 @@ public final class P4AuthTest {
             }
         }
     }
+
+    @Test(dataProvider = "all", dataProviderClass = P4TesterDataProvider.class)
+    void loginWithSharedTicket(@NotNull P4TesterFactory factory) throws Exception {
+        try (P4Tester tester = factory.createTester()) {
+            try (Client client = tester.connect()) {
+                assertTrue(client.p4((message, severityHolder) -> null, "passwd", "-P", correctPassword, client.getUsername()));
+            }
+
+            final TicketStore tickets = new MemoryTicketStore();
+            final ServerInfoCache serverCache = new ServerInfoCache(60 * 1000);
+            try (Client client = tester.connect("JackSparrow", correctPassword, tickets, serverCache)) {
+                assertTrue(client.p4((message, severityHolder) -> null, "changes"));
+            }
+
+            // Ticket and server info are reused without login
+            try (Client client = tester.connect("JackSparrow", wrongPassword, tickets, serverCache)) {
+                assertTrue(client.p4((message, severityHolder) -> null, "changes"));
+            }
+        }
+    }
 }
@@ -0,0 +1,53 @@
+package ru.bozaro.p4;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.Client;
+import ru.bozaro.p4.proto.ClientPool;
+
+import java.io.IOException;
+
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class P4ClientPoolTest {
+
+    @Test(dataProvider = "all", dataProviderClass = P4TesterDataProvider.class)
+    void reuse(@NotNull P4TesterFactory factory) throws Exception {
+        try (P4Tester tester = factory.createTester();
+             ClientPool pool = new ClientPool(key -> connect(tester), 2, 60 * 1000, 60 * 1000)) {
+            final ClientPool.Key key = new ClientPool.Key("tester", "JackSparrow", "JackSparrow");
+
+            final Client client;
+            try (ClientPool.Lease lease = pool.borrow(key)) {
+                client = lease.getClient();
+                assertTrue(client.p4((message, severityHolder) -> null, "changes"));
+            }
+
+            try (ClientPool.Lease lease = pool.borrow(key)) {
+                assertSame(lease.getClient(), client);
+                lease.invalidate();
+            }
+
+            try (ClientPool.Lease lease = pool.borrow(key)) {
+                assertNotSame(lease.getClient(), client);
+                assertTrue(lease.getClient().p4((message, severityHolder) -> null, "changes"));
+            }
+        }
+    }
+
+    @NotNull
+    private static Client connect(@NotNull P4Tester tester) throws IOException {
+        try {
+            return tester.connect();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+}
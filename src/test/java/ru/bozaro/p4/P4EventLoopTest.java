@@ -0,0 +1,54 @@
+package ru.bozaro.p4;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.Client;
+import ru.bozaro.p4.proto.EventLoop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class P4EventLoopTest {
+
+    @Test(dataProvider = "all", dataProviderClass = P4TesterDataProvider.class)
+    void manyConnections(@NotNull P4TesterFactory factory) throws Exception {
+        try (P4Tester tester = factory.createTester(); EventLoop loop = new EventLoop()) {
+            // Wait for server startup
+            tester.connect().close();
+
+            final AtomicInteger infoCount = new AtomicInteger();
+            final List<Client> clients = new ArrayList<>();
+            final List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+            try {
+                for (int i = 0; i < 20; ++i) {
+                    final Client client = tester.connect(loop);
+                    clients.add(client);
+                    for (int j = 0; j < 3; ++j) {
+                        futures.add(client.p4Async((message, severityHolder) -> {
+                            infoCount.incrementAndGet();
+                            return null;
+                        }, "info"));
+                    }
+                }
+
+                for (CompletableFuture<Boolean> future : futures)
+                    assertTrue(future.get(30, TimeUnit.SECONDS));
+
+                assertEquals(infoCount.get(), futures.size());
+                assertTrue(clients.get(0).p4((message, severityHolder) -> null, "changes"));
+            } finally {
+                for (Client client : clients)
+                    client.close();
+            }
+        }
+    }
+}
@@ -1,13 +1,20 @@
 package ru.bozaro.p4;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.bozaro.p4.proto.Client;
+import ru.bozaro.p4.proto.EventLoop;
+import ru.bozaro.p4.proto.MemoryTicketStore;
+import ru.bozaro.p4.proto.ServerInfoCache;
+import ru.bozaro.p4.proto.TicketStore;
 
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -75,12 +82,17 @@ public final class P4Tester implements AutoCloseable {
 
     @NotNull
     public Client connect(@NotNull String username, @NotNull String password) throws Exception {
+        return connect(username, password, new MemoryTicketStore(), null);
+    }
+
+    @NotNull
+    public Client connect(@NotNull String username, @NotNull String password, @NotNull TicketStore tickets, @Nullable ServerInfoCache serverCache) throws Exception {
         long timeout = System.currentTimeMillis() + 10 * 1000;
         while (true) {
             try {
-                Socket socket = new Socket(HOST, serverPort);
+                Socket socket = SocketChannel.open(new InetSocketAddress(HOST, serverPort)).socket();
                 return new Client(socket, username, password, username, (prompt, noecho) -> "", (severity, message) -> {
-                }, false);
+                }, tickets, serverCache, false);
             } catch (ConnectException e) {
                 if (System.currentTimeMillis() > timeout)
                     throw new IOException("Server connect timeout", e);
@@ -90,6 +102,15 @@ public final class P4Tester implements AutoCloseable {
         }
     }
 
+    /**
+     * Open non-blocking connection. Server must be already started, see {@link #connect()}.
+     */
+    @NotNull
+    public Client connect(@NotNull EventLoop loop) throws Exception {
+        return loop.connect(new InetSocketAddress(HOST, serverPort), "JackSparrow", "", "JackSparrow", (prompt, noecho) -> "", (severity, message) -> {
+        }, false);
+    }
+
     @NotNull
     public Client connect() throws Exception {
         return connectWithPassword("");
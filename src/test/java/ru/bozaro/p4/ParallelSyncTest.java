@@ -0,0 +1,98 @@
+package ru.bozaro.p4;
+
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.ClientPool;
+import ru.bozaro.p4.proto.Message;
+import ru.bozaro.p4.sync.FsyncPolicy;
+import ru.bozaro.p4.sync.ParallelSync;
+import ru.bozaro.p4.sync.SyncEngine;
+import ru.bozaro.p4.sync.SyncResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class ParallelSyncTest {
+
+    private static final ClientPool.Key KEY = new ClientPool.Key("fake", "JackSparrow", "JackSparrow");
+
+    @Test
+    public void options() throws Exception {
+        final List<List<String>> commands = Collections.synchronizedList(new ArrayList<>());
+        try (FakeServer server = new FakeServer((command, connection) -> {
+            if (!command.getFunc().equals("user-sync"))
+                return;
+
+            commands.add(command.getArgs());
+            if (!command.getArgs().contains("-n"))
+                return;
+
+            for (int i = 0; i < 5; ++i) {
+                connection.send(new Message.Builder()
+                        .param("depotFile", "//depot/file" + i)
+                        .param("rev", "3")
+                        .param("fileSize", "60")
+                        .param("action", "updated")
+                        .param(Message.FUNC, "client-FstatInfo")
+                        .build());
+            }
+        });
+             ClientPool pool = new ClientPool(key -> server.connect(), 4, 60 * 1000, 60 * 1000);
+             SyncEngine engine = new SyncEngine(1, 0x100000, FsyncPolicy.None)) {
+            // Split by bytes: two files of 60 bytes don't fit into 100 bytes
+            final ParallelSync sync = new ParallelSync(pool, engine, 2, 10, 100);
+            final SyncResult result = sync.sync(KEY, null, "-q", "-m", "10", "-f", "//depot/...");
+            assertTrue(result.isOk());
+            assertTrue(server.getErrors().isEmpty());
+
+            // Quiet preview would report no files, file count limit applies to preview only
+            assertEquals(commands.get(0), Arrays.asList("-n", "-m", "10", "-f", "//depot/..."));
+            assertEquals(commands.size(), 6);
+            final List<String> synced = new ArrayList<>();
+            for (List<String> batch : commands.subList(1, commands.size())) {
+                assertEquals(batch.size(), 3);
+                assertEquals(batch.subList(0, 2), Arrays.asList("-q", "-f"));
+                synced.add(batch.get(2));
+            }
+            Collections.sort(synced);
+            assertEquals(synced, Arrays.asList("//depot/file0#3", "//depot/file1#3", "//depot/file2#3", "//depot/file3#3", "//depot/file4#3"));
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void previewRejected() throws Exception {
+        try (ClientPool pool = new ClientPool(key -> {
+            throw new AssertionError("Must not connect");
+        }, 1, 60 * 1000, 60 * 1000);
+             SyncEngine engine = new SyncEngine(1, 0x100000, FsyncPolicy.None)) {
+            new ParallelSync(pool, engine, 1, 10, 100).sync(KEY, null, "-n", "//depot/...");
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void missingValue() throws Exception {
+        try (ClientPool pool = new ClientPool(key -> {
+            throw new AssertionError("Must not connect");
+        }, 1, 60 * 1000, 60 * 1000);
+             SyncEngine engine = new SyncEngine(1, 0x100000, FsyncPolicy.None)) {
+            new ParallelSync(pool, engine, 1, 10, 100).sync(KEY, null, "-m");
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidBatchBytes() throws Exception {
+        try (ClientPool pool = new ClientPool(key -> {
+            throw new AssertionError("Must not connect");
+        }, 1, 60 * 1000, 60 * 1000);
+             SyncEngine engine = new SyncEngine(1, 0x100000, FsyncPolicy.None)) {
+            new ParallelSync(pool, engine, 1, 10, 0);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package ru.bozaro.p4;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.BufferPool;
+import ru.bozaro.p4.proto.Client;
+import ru.bozaro.p4.proto.EventLoop;
+import ru.bozaro.p4.proto.FrameLimits;
+import ru.bozaro.p4.proto.Message;
+import ru.bozaro.p4.proto.PrintTarget;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class PrintTest {
+
+    @NotNull
+    private static final byte[] binary = new byte[200000];
+
+    static {
+        new Random(42).nextBytes(binary);
+    }
+
+    @Test
+    public void streamToChannels() throws Exception {
+        try (FakeServer server = new FakeServer(PrintTest::script);
+             Client client = server.connect()) {
+            final Output output = new Output();
+            assertTrue(client.print(output, "//depot/..."));
+            assertTrue(server.getErrors().isEmpty());
+            output.check();
+        }
+    }
+
+    @Test
+    public void pooledFrames() throws Exception {
+        final BufferPool pool = new BufferPool(0x100000, false);
+        try (FakeServer server = new FakeServer(PrintTest::script);
+             EventLoop loop = new EventLoop(FrameLimits.DEFAULT, pool);
+             Client client = server.connect(loop)) {
+            // Budget is exhausted by other buffer, so connection waits for it
+            final ByteBuffer held = pool.acquire(0x100000);
+            final Output output = new Output();
+            final CompletableFuture<Boolean> result = client.printAsync(output, "//depot/...");
+            try {
+                result.get(200, TimeUnit.MILLISECONDS);
+                fail("Budget is exhausted");
+            } catch (TimeoutException ignored) {
+            }
+            assertTrue(pool.getWaits() > 0);
+
+            pool.release(held);
+            assertTrue(result.get(10, TimeUnit.SECONDS));
+            assertTrue(server.getErrors().isEmpty());
+            output.check();
+
+            // 12 received frames besides connection and command buffers
+            final long acquired = pool.getHits() + pool.getMisses();
+            assertTrue(acquired > 12, "Received frames are not pooled: " + acquired);
+        }
+        // All frames are returned to pool
+        assertEquals(pool.getAllocatedBytes(), pool.getCachedBytes());
+    }
+
+    private static void script(@NotNull Message command, @NotNull FakeServer.Connection connection) throws IOException {
+        if (!command.getFunc().equals("user-print"))
+            return;
+
+        connection.send(metadata("//depot/a.txt"));
+        connection.send(chunk("client-OutputText", "hello ".getBytes(StandardCharsets.UTF_8)));
+        connection.send(chunk("client-OutputText", "world".getBytes(StandardCharsets.UTF_8)));
+        connection.send(chunk("client-OutputText", new byte[0]));
+
+        // Skipped by target
+        connection.send(metadata("//depot/skip.txt"));
+        connection.send(chunk("client-OutputText", "skipped".getBytes(StandardCharsets.UTF_8)));
+
+        // Ends with next file metadata
+        connection.send(metadata("//depot/b.bin"));
+        connection.send(chunk("client-OutputBinary", Arrays.copyOfRange(binary, 0, 100000)));
+        connection.send(chunk("client-OutputBinary", Arrays.copyOfRange(binary, 100000, binary.length)));
+
+        // Ends with command completion
+        connection.send(metadata("//depot/c.txt"));
+        connection.send(chunk("client-OutputText", "last".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static Message metadata(String depotFile) {
+        return new Message.Builder()
+                .param("depotFile", depotFile)
+                .param("rev", "1")
+                .param("type", "text")
+                .param(Message.FUNC, "client-FstatInfo")
+                .build();
+    }
+
+    private static Message chunk(String func, byte[] data) {
+        return new Message.Builder()
+                .param("data", data)
+                .param(Message.FUNC, func)
+                .build();
+    }
+
+    private static final class Output implements PrintTarget {
+        @NotNull
+        private final Map<String, ByteArrayOutputStream> contents = new LinkedHashMap<>();
+        @NotNull
+        private final List<String> completed = new ArrayList<>();
+
+        @Override
+        public WritableByteChannel open(@NotNull Message metadata) {
+            final String depotFile = metadata.getString("depotFile");
+            if (depotFile.contains("skip"))
+                return null;
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            contents.put(depotFile, stream);
+            return Channels.newChannel(stream);
+        }
+
+        @Override
+        public void complete(@NotNull Message metadata, @NotNull WritableByteChannel channel) {
+            completed.add(metadata.getString("depotFile"));
+        }
+
+        private void check() throws IOException {
+            assertEquals(completed, Arrays.asList("//depot/a.txt", "//depot/b.bin", "//depot/c.txt"));
+            assertEquals(new ArrayList<>(contents.keySet()), completed);
+            assertEquals(contents.get("//depot/a.txt").toString("UTF-8"), "hello world");
+            assertEquals(contents.get("//depot/b.bin").toByteArray(), binary);
+            assertEquals(contents.get("//depot/c.txt").toString("UTF-8"), "last");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ru.bozaro.p4;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.Message;
+import ru.bozaro.p4.proto.MessageReader;
+import ru.bozaro.p4.proto.ResultTable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class ResultTableTest {
+
+    private static final int ROWS = 5000;
+
+    @NotNull
+    private static Message fstat(int index) {
+        final Message.Builder builder = new Message.Builder()
+                .param("depotFile", "//depot/dir" + (index / 100) + "/file" + index + ".txt")
+                .param("headAction", index % 3 == 0 ? "edit" : "add")
+                .param("headRev", Integer.toString(index % 7 + 1));
+        if (index % 5 == 0)
+            builder.param("otherOpen", "1");
+        if (index >= 100)
+            builder.param("headTime", Long.toString(1400000000L + index * 17L));
+        return builder
+                .param(Message.FUNC, "client-FstatInfo")
+                .build();
+    }
+
+    private static void checkRow(@NotNull ResultTable.Cursor cursor, int index) {
+        final Message expected = fstat(index);
+        assertEquals(cursor.getRow(), index);
+        for (String tag : Arrays.asList("depotFile", "headAction", "headRev", "otherOpen", "headTime"))
+            assertEquals(cursor.getString(tag), expected.getString(tag), tag + " of row " + index);
+        assertNull(cursor.getString("unknown"));
+    }
+
+    @Test
+    public void collect() throws IOException, InterruptedException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < ROWS; ++i)
+            fstat(i).send(stream);
+        new Message.Builder()
+                .param("fmt0", "No such file")
+                .param(Message.FUNC, "client-Message")
+                .build()
+                .send(stream);
+
+        final ResultTable table = new ResultTable();
+        final MessageReader reader = new MessageReader(new ByteArrayInputStream(stream.toByteArray()));
+        for (int i = 0; i <= ROWS; ++i)
+            table.exec(reader.recv(), null);
+
+        assertEquals(table.size(), ROWS);
+        assertEquals(table.getColumns(), Arrays.asList("depotFile", "headAction", "headRev", "otherOpen", "headTime"));
+
+        final ResultTable.Cursor cursor = table.cursor();
+        for (int i = 0; i < ROWS; ++i) {
+            assertTrue(cursor.next());
+            checkRow(cursor, i);
+        }
+        assertFalse(cursor.next());
+
+        for (int i : new int[]{4999, 0, 17, 16, 15, 2500, 2501, 99, 100}) {
+            cursor.seek(i);
+            checkRow(cursor, i);
+        }
+        assertEquals(cursor.getBytes("headAction"), "add".getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,69 @@
+package ru.bozaro.p4;
+
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.ErrorSeverity;
+import ru.bozaro.p4.proto.Message;
+import ru.bozaro.p4.proto.ServerMessage;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class ServerMessageTest {
+
+    @Test
+    public void code() {
+        final int code = (3 << 28) | (1 << 24) | (0x11 << 16) | (6 << 10) | 25;
+        final ServerMessage message = new ServerMessage(code, "%depotFile% - file(s) up-to-date.", new Message.Builder()
+                .param("depotFile", "//depot/a")
+                .param(Message.FUNC, "client-Message")
+                .build());
+
+        assertEquals(message.getSeverity(), ErrorSeverity.Failed);
+        assertEquals(message.getArgCount(), 1);
+        assertEquals(message.getGeneric(), 0x11);
+        assertEquals(message.getSubsystem(), 6);
+        assertEquals(message.getSubCode(), 25);
+        assertEquals(message.getUniqueCode(), (6 << 10) | 25);
+        assertEquals(message.getArg("depotFile"), "//depot/a");
+        assertNull(message.getArg("clientFile"));
+        assertEquals(message.getText(), "//depot/a - file(s) up-to-date.");
+    }
+
+    @Test
+    public void empty() {
+        final ServerMessage message = new ServerMessage(0, "Done.", new Message.Builder()
+                .param(Message.FUNC, "client-Message")
+                .build());
+
+        assertEquals(message.getSeverity(), ErrorSeverity.None);
+        assertEquals(message.getText(), "Done.");
+    }
+
+    @Test
+    public void authError() {
+        final Message message = new Message.Builder()
+                .param(Message.FUNC, "client-Message")
+                .build();
+
+        // Codes as sent by server: failed, config error
+        final ServerMessage badPassword = new ServerMessage((int) 807672853L, "Perforce password (%'P4PASSWD'%) invalid or unset.", message);
+        assertEquals(badPassword.getSubsystem(), ServerMessage.SUBSYSTEM_SERVER);
+        assertEquals(badPassword.getUniqueCode(), ServerMessage.BAD_PASSWORD);
+        assertTrue(badPassword.isAuthError());
+
+        final int expired = (3 << 28) | (0x24 << 16) | ServerMessage.LOGIN_EXPIRED;
+        assertTrue(new ServerMessage(expired, "Your session has expired, please %'login'% again.", message).isAuthError());
+
+        // Format text doesn't matter
+        assertTrue(new ServerMessage(expired, "Sitzung abgelaufen.", message).isAuthError());
+        assertFalse(new ServerMessage((3 << 28) | (6 << 10) | 21, "Perforce password (%'P4PASSWD'%) invalid or unset.", message).isAuthError());
+
+        // Warnings and info never trigger login
+        assertFalse(new ServerMessage((2 << 28) | ServerMessage.BAD_PASSWORD, "Perforce password (%'P4PASSWD'%) invalid or unset.", message).isAuthError());
+    }
+}
@@ -1,8 +1,17 @@
 package ru.bozaro.p4;
 
 import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.StringInterpolator;
+import ru.bozaro.p4.proto.StringTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
 import static ru.bozaro.p4.proto.StringInterpolator.interpolate;
 
 /**
@@ -65,6 +74,11 @@ public final class StringInterpolatorTest {
         assertEquals(interpolate("%'junk", s -> ""), "%'junk");
     }
 
+    @Test
+    public void escapedUnterminated() {
+        assertEquals(interpolate("%'foo'", s -> ""), "%'foo'");
+    }
+
     @Test
     public void quote() {
         assertEquals(interpolate("'", s -> ""), "'");
@@ -94,4 +108,35 @@ public final class StringInterpolatorTest {
     public void alternateFalse() {
         assertEquals(interpolate("[%argc% - file(s)|File(s)] not opened on this client.", s -> "qwe"), "qwe - file(s) not opened on this client.");
     }
+
+    @Test
+    public void compiled() {
+        final StringTemplate template = StringInterpolator.compile("%depotFile%[ - %action%| - none] %'p4 edit'%");
+        assertEquals(template.render(s -> "depotFile".equals(s) ? "//depot/a" : ""), "//depot/a - none p4 edit");
+        assertEquals(template.render(s -> "action".equals(s) ? "edit" : "//depot/b"), "//depot/b - edit p4 edit");
+    }
+
+    @Test
+    public void cacheBounded() throws Exception {
+        final String format = "%user% cached";
+        final StringTemplate template = StringInterpolator.compile(format);
+        assertSame(StringInterpolator.compile(format), template);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; ++t) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 5000; ++i)
+                        assertEquals(StringInterpolator.compile("%arg% " + thread + " " + i).render(s -> "x"), "x " + thread + " " + i);
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(StringInterpolator.compile(format).render(s -> "me"), "me cached");
+    }
 }
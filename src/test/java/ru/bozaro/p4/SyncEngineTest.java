@@ -0,0 +1,382 @@
+package ru.bozaro.p4;
+
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.Client;
+import ru.bozaro.p4.proto.EventLoop;
+import ru.bozaro.p4.proto.Message;
+import ru.bozaro.p4.sync.FsyncPolicy;
+import ru.bozaro.p4.sync.SyncEngine;
+import ru.bozaro.p4.sync.SyncResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class SyncEngineTest {
+
+    @Test
+    public void blocking() throws Exception {
+        final Path root = Files.createTempDirectory("p4sync");
+        try (FakeServer server = new FakeServer((command, connection) -> syncScript(command, connection, root));
+             Client client = server.connect()) {
+            checkSync(server, client, root);
+        } finally {
+            P4Tester.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void eventLoop() throws Exception {
+        final Path root = Files.createTempDirectory("p4sync");
+        try (FakeServer server = new FakeServer((command, connection) -> syncScript(command, connection, root));
+             EventLoop loop = new EventLoop();
+             Client client = server.connect(loop)) {
+            checkSync(server, client, root);
+        } finally {
+            P4Tester.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void writeFailure() throws Exception {
+        final Path root = Files.createTempDirectory("p4sync");
+        try (FakeServer server = new FakeServer((command, connection) -> {
+            if (!command.getFunc().equals("user-sync"))
+                return;
+
+            // Parent directory can't be created over regular file
+            Files.write(root.resolve("blocker"), new byte[1]);
+            connection.send(openFile("h1", root.resolve("blocker/a.txt")));
+            connection.send(writeFile("h1", new byte[100]));
+            connection.send(closeFile("h1"));
+            assertEquals(connection.recv().getFunc(), "dm-DeclineFile");
+        });
+             SyncEngine engine = new SyncEngine(2, 0x100000, FsyncPolicy.None);
+             Client client = server.connect()) {
+            final SyncResult result = engine.sync(client, "//depot/...");
+            assertTrue(server.getErrors().isEmpty(), server.getErrors().toString());
+            assertFalse(result.isOk());
+            assertEquals(result.getWritten(), 0);
+            assertEquals(result.getErrors().size(), 1);
+            assertTrue(result.getErrors().get(0).getMessage().startsWith("Can't write " + root.resolve("blocker/a.txt")));
+            assertEquals(tempFiles(root), 0);
+        } finally {
+            P4Tester.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void unexpectedWrite() throws Exception {
+        final Path root = Files.createTempDirectory("p4sync");
+        try (FakeServer server = new FakeServer((command, connection) -> {
+            if (!command.getFunc().equals("user-sync"))
+                return;
+
+            connection.send(writeFile("h0", new byte[100]));
+            connection.send(openFile("h1", root.resolve("a.txt")));
+            connection.send(new Message.Builder()
+                    .param("handle", "h1")
+                    .param(Message.FUNC, "client-WriteFile")
+                    .build());
+            connection.send(closeFile("h1"));
+            assertEquals(connection.recv().getFunc(), "dm-DeclineFile");
+        });
+             SyncEngine engine = new SyncEngine(2, 0x100000, FsyncPolicy.None);
+             Client client = server.connect()) {
+            final SyncResult result = engine.sync(client, "//depot/...");
+            assertTrue(server.getErrors().isEmpty(), server.getErrors().toString());
+            assertEquals(result.getWritten(), 0);
+            assertEquals(result.getErrors().size(), 2);
+            assertEquals(result.getErrors().get(0).getMessage(), "File is not opened: h0");
+            assertEquals(result.getErrors().get(1).getCause().getMessage(), "Parameter 'data' is missing in client-WriteFile");
+            assertFalse(Files.exists(root.resolve("a.txt")));
+            assertEquals(tempFiles(root), 0);
+        } finally {
+            P4Tester.deleteDirectory(root);
+        }
+    }
+
+    /**
+     * Event loop connection over pending bytes limit is paused without blocking other connections of loop.
+     */
+    @Test
+    public void pendingBytesLimit() throws Exception {
+        final Path root = Files.createTempDirectory("p4sync");
+        final byte[] content = new byte[0xA0000];
+        new Random(42).nextBytes(content);
+
+        final CountDownLatch diskReady = new CountDownLatch(1);
+        final ExecutorService writers = Executors.newSingleThreadExecutor();
+        writers.execute(() -> {
+            try {
+                diskReady.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        try (FakeServer server = new FakeServer((command, connection) -> {
+            if (!command.getFunc().equals("user-sync"))
+                return;
+
+            connection.send(openFile("h1", root.resolve("large.bin")));
+            for (int offset = 0; offset < content.length; offset += 0x10000)
+                connection.send(writeFile("h1", Arrays.copyOfRange(content, offset, offset + 0x10000)));
+            connection.send(closeFile("h1"));
+            assertEquals(connection.recv().getFunc(), "dm-CommitFile");
+        });
+             SyncEngine engine = new SyncEngine(writers, 0x20000, FsyncPolicy.None, Paths::get);
+             EventLoop loop = new EventLoop();
+             Client syncing = server.connect(loop);
+             Client other = server.connect(loop)) {
+            final CompletableFuture<SyncResult> sync = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return engine.sync(syncing, "//depot/...");
+                } catch (IOException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            try {
+                // Writer is stuck, but event loop still serves other connections
+                assertTrue(other.p4Async((message, severityHolder) -> null, "info").get(10, TimeUnit.SECONDS));
+                assertFalse(sync.isDone());
+            } finally {
+                diskReady.countDown();
+            }
+            final SyncResult result = sync.get(30, TimeUnit.SECONDS);
+            assertTrue(result.isOk(), result.getErrors().toString());
+            assertEquals(result.getWritten(), 1);
+            assertEquals(Files.readAllBytes(root.resolve("large.bin")), content);
+            assertTrue(server.getErrors().isEmpty(), server.getErrors().toString());
+        } finally {
+            P4Tester.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void overlapBlocking() throws Exception {
+        final Path root = Files.createTempDirectory("p4sync");
+        final CountDownLatch firstFile = new CountDownLatch(1);
+        try (FakeServer server = new FakeServer((command, connection) -> overlapScript(command, connection, root, firstFile));
+             Client client = server.connect()) {
+            checkOverlap(server, client, firstFile);
+        } finally {
+            P4Tester.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void overlapEventLoop() throws Exception {
+        final Path root = Files.createTempDirectory("p4sync");
+        final CountDownLatch firstFile = new CountDownLatch(1);
+        try (FakeServer server = new FakeServer((command, connection) -> overlapScript(command, connection, root, firstFile));
+             EventLoop loop = new EventLoop();
+             Client client = server.connect(loop)) {
+            checkOverlap(server, client, firstFile);
+        } finally {
+            P4Tester.deleteDirectory(root);
+        }
+    }
+
+    /**
+     * Second file is received and written while first one is stuck, but confirmations and 'flush2' keep order.
+     */
+    private static void overlapScript(Message command, FakeServer.Connection connection, Path root, CountDownLatch firstFile) throws Exception {
+        if (!command.getFunc().equals("user-sync"))
+            return;
+
+        try {
+            for (int i = 1; i <= 2; ++i) {
+                final String handle = "h" + i;
+                connection.send(openFile(handle, root.resolve("file" + i + ".txt")));
+                connection.send(writeFile(handle, content(i, 0)));
+                connection.send(closeFile(handle));
+            }
+            connection.send(new Message.Builder()
+                    .param("fseq", "1")
+                    .param(Message.FUNC, "flush1")
+                    .build());
+
+            final Path second = root.resolve("file2.txt");
+            for (int i = 0; i < 100 && !Files.exists(second); ++i)
+                Thread.sleep(100);
+            assertTrue(Files.exists(second));
+            assertTrue(connection.idle(200));
+        } finally {
+            firstFile.countDown();
+        }
+
+        final Message first = connection.recv();
+        assertEquals(first.getFunc(), "dm-CommitFile");
+        assertEquals(first.getString("handle"), "h1");
+        final Message second = connection.recv();
+        assertEquals(second.getFunc(), "dm-CommitFile");
+        assertEquals(second.getString("handle"), "h2");
+        assertEquals(connection.recv().getFunc(), "flush2");
+    }
+
+    private static void checkOverlap(FakeServer server, Client client, CountDownLatch firstFile) throws Exception {
+        try (SyncEngine engine = new SyncEngine(new GatedExecutor(firstFile), 0x100000, FsyncPolicy.None, Paths::get)) {
+            final SyncResult result = engine.sync(client, "//depot/...");
+            assertTrue(server.getErrors().isEmpty(), server.getErrors().toString());
+            assertTrue(result.isOk(), result.getErrors().toString());
+            assertEquals(result.getWritten(), 2);
+        } finally {
+            firstFile.countDown();
+        }
+    }
+
+    /**
+     * Files are confirmed only when they are already on disk.
+     */
+    private static void syncScript(Message command, FakeServer.Connection connection, Path root) throws Exception {
+        if (!command.getFunc().equals("user-sync"))
+            return;
+
+        for (int i = 0; i < 3; ++i) {
+            final String handle = "h" + i;
+            final Path path = root.resolve("dir" + i).resolve("file" + i + ".txt");
+            connection.send(openFile(handle, path));
+            for (int j = 0; j < 3; ++j)
+                connection.send(writeFile(handle, content(i, j)));
+            connection.send(closeFile(handle));
+
+            final Message commit = connection.recv();
+            assertEquals(commit.getFunc(), "dm-CommitFile");
+            assertEquals(commit.getString("handle"), handle);
+            assertEquals(new String(Files.readAllBytes(path), "UTF-8"), new String(content(i, 0), "UTF-8") + new String(content(i, 1), "UTF-8") + new String(content(i, 2), "UTF-8"));
+        }
+
+        final Path deleted = root.resolve("deleted.txt");
+        connection.send(new Message.Builder()
+                .param("clientFile", deleted.toString())
+                .param("confirm", "dm-DeleteFile")
+                .param(Message.FUNC, "client-DeleteFile")
+                .build());
+        assertEquals(connection.recv().getFunc(), "dm-DeleteFile");
+        assertFalse(Files.exists(deleted));
+    }
+
+    private static void checkSync(FakeServer server, Client client, Path root) throws Exception {
+        Files.write(root.resolve("deleted.txt"), new byte[1]);
+        try (SyncEngine engine = new SyncEngine(2, 0x100000, FsyncPolicy.File)) {
+            final SyncResult result = engine.sync(client, "//depot/...");
+            assertTrue(server.getErrors().isEmpty(), server.getErrors().toString());
+            assertTrue(result.isOk(), result.getErrors().toString());
+            assertEquals(result.getWritten(), 3);
+            assertEquals(result.getDeleted(), 1);
+            assertEquals(tempFiles(root), 0);
+        }
+    }
+
+    private static byte[] content(int file, int chunk) {
+        return ("file " + file + " chunk " + chunk + "\n").getBytes();
+    }
+
+    private static long tempFiles(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".p4tmp")).count();
+        }
+    }
+
+    private static Message openFile(String handle, Path path) {
+        return new Message.Builder()
+                .param("clientFile", path.toString())
+                .param("handle", handle)
+                .param("type", "text")
+                .param("perms", "rw")
+                .param(Message.FUNC, "client-OpenFile")
+                .build();
+    }
+
+    private static Message writeFile(String handle, byte[] data) {
+        return new Message.Builder()
+                .param("handle", handle)
+                .param("data", data)
+                .param(Message.FUNC, "client-WriteFile")
+                .build();
+    }
+
+    private static Message closeFile(String handle) {
+        return new Message.Builder()
+                .param("handle", handle)
+                .param("commit", "dm-CommitFile")
+                .param("decline", "dm-DeclineFile")
+                .param(Message.FUNC, "client-CloseFile")
+                .build();
+    }
+
+    /**
+     * Two writer threads, first task waits for gate.
+     */
+    private static final class GatedExecutor extends AbstractExecutorService {
+        private final ExecutorService pool = Executors.newFixedThreadPool(2);
+        private final AtomicBoolean first = new AtomicBoolean(true);
+        private final CountDownLatch gate;
+
+        private GatedExecutor(CountDownLatch gate) {
+            this.gate = gate;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (!first.getAndSet(false)) {
+                pool.execute(command);
+                return;
+            }
+            pool.execute(() -> {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                command.run();
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return pool.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return pool.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return pool.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return pool.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ru.bozaro.p4;
+
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.FileTicketStore;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+/**
+ * @author Artem V. Navrotskiy
+ */
+public final class TicketStoreTest {
+
+    @Test
+    public void fileFormat() throws Exception {
+        final Path file = Files.createTempFile("p4tickets", ".txt");
+        try {
+            Files.write(file, Arrays.asList("localhost:1666=bob:0123456789ABCDEF0123456789ABCDEF", "garbage"), StandardCharsets.UTF_8);
+
+            final FileTicketStore store = new FileTicketStore(file);
+            assertEquals(store.get("localhost:1666", "bob"), "0123456789ABCDEF0123456789ABCDEF");
+            assertNull(store.get("localhost:1666", "alice"));
+
+            store.put("localhost:1666", "alice", "FEDCBA9876543210FEDCBA9876543210");
+            store.put("localhost:1666", "bob", "00000000000000000000000000000000");
+            assertEquals(Files.readAllLines(file, StandardCharsets.UTF_8), Arrays.asList(
+                    "localhost:1666=bob:00000000000000000000000000000000",
+                    "garbage",
+                    "localhost:1666=alice:FEDCBA9876543210FEDCBA9876543210"
+            ));
+
+            // Change by another instance must be visible
+            new FileTicketStore(file).remove("localhost:1666", "bob");
+            assertNull(store.get("localhost:1666", "bob"));
+            assertEquals(store.get("localhost:1666", "alice"), "FEDCBA9876543210FEDCBA9876543210");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void sameLengthReplace() throws Exception {
+        final Path file = Files.createTempFile("p4tickets", ".txt");
+        try {
+            Files.write(file, Collections.singletonList("localhost:1666=bob:0123456789ABCDEF0123456789ABCDEF"), StandardCharsets.UTF_8);
+            final FileTime modified = Files.getLastModifiedTime(file);
+
+            final FileTicketStore store = new FileTicketStore(file);
+            assertEquals(store.get("localhost:1666", "bob"), "0123456789ABCDEF0123456789ABCDEF");
+
+            // Ticket of same length written within timestamp granularity
+            Files.write(file, Collections.singletonList("localhost:1666=bob:FEDCBA9876543210FEDCBA9876543210"), StandardCharsets.UTF_8);
+            Files.setLastModifiedTime(file, modified);
+            assertEquals(store.get("localhost:1666", "bob"), "FEDCBA9876543210FEDCBA9876543210");
+
+            // File replaced by rename
+            final Path temp = Files.createTempFile(file.getParent(), "p4tickets", ".tmp");
+            Files.write(temp, Collections.singletonList("localhost:1666=bob:00000000000000000000000000000000"), StandardCharsets.UTF_8);
+            Files.setLastModifiedTime(temp, modified);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            assertEquals(store.get("localhost:1666", "bob"), "00000000000000000000000000000000");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        final Path file = Files.createTempDirectory("p4tickets").resolve("tickets");
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; ++i) {
+                final String user = "user" + i;
+                futures.add(executor.submit(() -> {
+                    final FileTicketStore store = new FileTicketStore(file);
+                    store.put("server:1666", user, "ticket-" + user);
+                    return store.get("server:1666", user);
+                }));
+            }
+            for (int i = 0; i < futures.size(); ++i)
+                assertEquals(futures.get(i).get(), "ticket-user" + i);
+
+            final FileTicketStore store = new FileTicketStore(file);
+            for (int i = 0; i < 64; ++i)
+                assertEquals(store.get("server:1666", "user" + i), "ticket-user" + i);
+        } finally {
+            executor.shutdown();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(file.getParent());
+        }
+    }
+}
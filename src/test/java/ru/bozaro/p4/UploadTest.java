@@ -0,0 +1,202 @@
+package ru.bozaro.p4;
+
+import org.testng.annotations.Test;
+import ru.bozaro.p4.proto.Client;
+import ru.bozaro.p4.proto.ErrorSeverity;
+import ru.bozaro.p4.proto.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Upload of local files for 'client-SendFile'.
+ *
+ * @author Artem V. Navrotskiy
+ */
+public final class UploadTest {
+
+    @Test
+    public void largeFile() throws Exception {
+        // Larger than mapped window of 16 MB
+        final byte[] content = new byte[0x1400000 + 12345];
+        new Random(42).nextBytes(content);
+        final Path file = Files.createTempFile("p4upload", ".bin");
+        try {
+            Files.write(file, content);
+
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final AtomicReference<Message> confirm = new AtomicReference<>();
+            try (FakeServer server = new FakeServer((command, connection) -> {
+                if (!command.getFunc().equals("user-submit"))
+                    return;
+
+                connection.send(sendFile(file.toString()));
+                confirm.set(receiveFile(connection, received));
+            });
+                 Client client = server.connect()) {
+                assertTrue(client.p4((message, severityHolder) -> null, "submit", "-d", "test"));
+                assertTrue(server.getErrors().isEmpty());
+            }
+
+            assertEquals(received.toByteArray(), content);
+            assertEquals(confirm.get().getString("handle"), "h1");
+            assertNull(confirm.get().getString("status"));
+            assertEquals(confirm.get().getString("digest"), hex(MessageDigest.getInstance("MD5").digest(content)));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void flowControl() throws Exception {
+        final int himark = 200000;
+        final byte[] content = new byte[0x200000];
+        new Random(42).nextBytes(content);
+        final Path file = Files.createTempFile("p4upload", ".bin");
+        try {
+            Files.write(file, content);
+
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final List<Long> marks = new ArrayList<>();
+            final AtomicInteger stalls = new AtomicInteger();
+            try (FakeServer server = new FakeServer((command, connection) -> {
+                if (!command.getFunc().equals("user-submit"))
+                    return;
+
+                connection.send(new Message.Builder()
+                        .param("rcvbuf", Integer.toString(himark))
+                        .param(Message.FUNC, "protocol")
+                        .build());
+                connection.send(sendFile(file.toString()));
+
+                long sent = 0;
+                long acked = 0;
+                while (true) {
+                    final Message message = connection.recv();
+                    if (message.getFunc().equals("flush1")) {
+                        final long fseq = Long.parseLong(message.getString("fseq"));
+                        // Mark covers exactly bytes of upload messages sent before it
+                        assertEquals(fseq, sent);
+                        assertEquals(message.getString("himark"), Integer.toString(himark));
+                        marks.add(fseq);
+                        if (sent - acked >= himark) {
+                            // Window is full: client must wait for 'flush2'
+                            assertTrue(connection.idle(300));
+                            stalls.incrementAndGet();
+                            connection.send(new Message.Builder()
+                                    .param("fseq", message.getBytes("fseq"))
+                                    .param(Message.FUNC, "flush2")
+                                    .build());
+                            acked = fseq;
+                        }
+                        continue;
+                    }
+
+                    sent += message.serialize().length;
+                    // Window is checked before each message, so it may be overrun by single chunk only
+                    assertTrue(sent - acked < himark + 0x10100, "Unacknowledged bytes: " + (sent - acked));
+                    if (message.getFunc().equals("dm-WriteFile"))
+                        received.write(message.getBytes("data"));
+                    else if (message.getFunc().equals("dm-SubmitFile"))
+                        break;
+                }
+            });
+                 Client client = server.connect()) {
+                assertTrue(client.p4((message, severityHolder) -> null, "submit", "-d", "test"));
+                assertTrue(server.getErrors().isEmpty(), server.getErrors().toString());
+            }
+
+            assertEquals(received.toByteArray(), content);
+            assertTrue(stalls.get() >= content.length / (himark + 0x10100), "Stalls: " + stalls.get());
+            assertTrue(marks.size() >= stalls.get());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void missingFile() throws Exception {
+        final Path file = Files.createTempDirectory("p4upload").resolve("missing.bin");
+        try {
+            final AtomicReference<Message> confirm = new AtomicReference<>();
+            final List<String> output = new ArrayList<>();
+            try (FakeServer server = new FakeServer((command, connection) -> {
+                if (!command.getFunc().equals("user-submit"))
+                    return;
+
+                connection.send(sendFile(file.toString()));
+                confirm.set(receiveFile(connection, new ByteArrayOutputStream()));
+            });
+                 Client client = server.connect((severity, message) -> output.add(severity + ": " + message))) {
+                assertFalse(client.p4((message, severityHolder) -> null, "submit", "-d", "test"));
+                assertTrue(server.getErrors().isEmpty());
+            }
+
+            assertNotNull(confirm.get());
+            assertEquals(confirm.get().getFunc(), "dm-SubmitFile");
+            assertEquals(confirm.get().getString("handle"), "h1");
+            assertEquals(confirm.get().getString("status"), "fail");
+            assertEquals(output.size(), 1);
+            assertTrue(output.get(0).startsWith(ErrorSeverity.Failed + ": Can't read " + file));
+        } finally {
+            Files.deleteIfExists(file.getParent());
+        }
+    }
+
+    private static Message sendFile(String path) {
+        return new Message.Builder()
+                .param("handle", "h1")
+                .param("path", path)
+                .param("open", "dm-OpenFile")
+                .param("write", "dm-WriteFile")
+                .param("confirm", "dm-SubmitFile")
+                .param(Message.FUNC, "client-SendFile")
+                .build();
+    }
+
+    /**
+     * Collect uploaded content, acknowledging flow control marks.
+     *
+     * @return Confirmation message.
+     */
+    private static Message receiveFile(FakeServer.Connection connection, ByteArrayOutputStream content) throws Exception {
+        while (true) {
+            final Message message = connection.recv();
+            switch (message.getFunc()) {
+                case "flush1":
+                    connection.send(new Message.Builder()
+                            .param("fseq", message.getBytes("fseq"))
+                            .param(Message.FUNC, "flush2")
+                            .build());
+                    break;
+                case "dm-OpenFile":
+                    break;
+                case "dm-WriteFile":
+                    content.write(message.getBytes("data"));
+                    break;
+                default:
+                    return message;
+            }
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder result = new StringBuilder();
+        for (byte b : bytes)
+            result.append(String.format("%02X", b & 0xFF));
+        return result.toString();
+    }
+}